@@ -0,0 +1,431 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.scriptsecurity.sandbox.groovy;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovySystem;
+import hudson.PluginWrapper;
+import hudson.Util;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.tools.GroovyClass;
+import org.kohsuke.groovy.sandbox.SandboxTransformer;
+
+/**
+ * Optional cache of compiled script classes under {@code $JENKINS_HOME/caches/script-security}, so that scripts need not be compiled again after a restart.
+ * Entries are named by a digest of the script together with everything else which might affect the bytecode:
+ * the sandbox flag, the versions of Groovy, groovy-sandbox and this plugin, and the contents of the parent loader.
+ * Since Groovy resolves class names at compile time, only loaders whose contents can be identified are cached:
+ * {@link hudson.PluginManager#uberClassLoader}, by the Jenkins version and the active plugins and their versions,
+ * and loaders from {@link SecureGroovyScript#classLoaders} over it, additionally by their classpath hashes.
+ * Each entry ends with a digest of its contents, and is discarded if that does not match.
+ * The least recently used entries are deleted once the cache exceeds {@link #MAX_SIZE} bytes.
+ */
+final class BytecodeCache {
+
+    private static final Logger LOG = Logger.getLogger(BytecodeCache.class.getName());
+
+    /** Whether to use the cache at all. */
+    static boolean ENABLED = Boolean.getBoolean(BytecodeCache.class.getName() + ".ENABLED");
+
+    static long MAX_SIZE = Long.getLong(BytecodeCache.class.getName() + ".MAX_SIZE", 64 * 1024 * 1024);
+
+    private static final int MAGIC = 0x53534243; // "SSBC"
+    private static final int DIGEST_LENGTH = 32;
+
+    private static @CheckForNull BytecodeCache instance;
+
+    /** @return the cache for the current Jenkins home, or null if disabled */
+    static synchronized @CheckForNull BytecodeCache get() {
+        Jenkins j = Jenkins.getInstance();
+        if (!ENABLED || j == null) {
+            return null;
+        }
+        File dir = new File(j.getRootDir(), "caches/script-security");
+        if (instance == null || !instance.dir.equals(dir)) {
+            instance = new BytecodeCache(dir);
+        }
+        return instance;
+    }
+
+    private final File dir;
+    /** Approximate total size of entries; -1 until first computed. */
+    private final AtomicLong size = new AtomicLong(-1);
+    private final AtomicBoolean cleanupScheduled = new AtomicBoolean();
+
+    BytecodeCache(@Nonnull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Loads a script class from the cache, or compiles it and adds it to the cache.
+     * @param script the script text
+     * @param sandbox whether to compile with {@link GroovySandbox#createSecureCompilerConfiguration}
+     * @param loader the loader to compile against, as passed to {@link GroovySandbox#createSecureClassLoader}
+     * @param classpathHashes hashes of any classpath entries {@code loader} includes
+     * @return the main class of the script, defined in a fresh loader;
+     *         or null if the contents of {@code loader} cannot be identified, in which case the caller should compile the script normally
+     * @throws CompilationFailedException if the script could not be compiled
+     */
+    @SuppressFBWarnings(value = "DP_CREATE_CLASSLOADER_INSIDE_DO_PRIVILEGED", justification = "Owned by the returned script class; nothing to close.")
+    @CheckForNull Class<?> load(@Nonnull String script, boolean sandbox, @Nonnull ClassLoader loader, @Nonnull List<String> classpathHashes) throws CompilationFailedException {
+        String contents = contents(loader, classpathHashes);
+        if (contents == null) {
+            return null;
+        }
+        String key = key(script, sandbox, contents);
+        File entry = new File(dir, key);
+        ClassLoader secureLoader = GroovySandbox.createSecureClassLoader(loader);
+        Entry cached = read(entry);
+        if (cached == null) {
+            cached = compile(script, sandbox, secureLoader, "Script" + key.substring(0, 8));
+            write(entry, cached);
+        } else if (!entry.setLastModified(System.currentTimeMillis())) {
+            LOG.log(Level.FINE, "could not touch {0}", entry);
+        }
+        try {
+            return new CachedScriptLoader(secureLoader, cached.classes).loadClass(cached.mainClass);
+        } catch (ClassNotFoundException x) {
+            throw new AssertionError(x); // checked by read
+        }
+    }
+
+    /** The classes of one script. */
+    private static final class Entry {
+        final String mainClass;
+        final Map<String,byte[]> classes;
+        Entry(String mainClass, Map<String,byte[]> classes) {
+            this.mainClass = mainClass;
+            this.classes = classes;
+        }
+    }
+
+    /** Defines the classes of one script, all in the same loader as {@link ClassLoaderWhitelist} expects. */
+    private static final class CachedScriptLoader extends ClassLoader {
+
+        private final Map<String,byte[]> classes;
+
+        CachedScriptLoader(ClassLoader parent, Map<String,byte[]> classes) {
+            super(parent);
+            this.classes = classes;
+        }
+
+        @Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] b = classes.get(name);
+            if (b == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, b, 0, b.length);
+        }
+
+    }
+
+    @SuppressFBWarnings(value = "DP_CREATE_CLASSLOADER_INSIDE_DO_PRIVILEGED", justification = "Only used to resolve classes during compilation; no classes are defined in it.")
+    private static Entry compile(String script, boolean sandbox, ClassLoader secureLoader, String name) throws CompilationFailedException {
+        CompilerConfiguration cc = sandbox ? GroovySandbox.createSecureCompilerConfiguration() : new CompilerConfiguration();
+        CompilationUnit unit = new CompilationUnit(cc, null, new GroovyClassLoader(secureLoader, cc));
+        unit.addSource(name + ".groovy", script);
+        unit.compile(Phases.CLASS_GENERATION);
+        Map<String,byte[]> classes = new HashMap<String,byte[]>();
+        for (Object c : unit.getClasses()) {
+            classes.put(((GroovyClass) c).getName(), ((GroovyClass) c).getBytes());
+        }
+        // As in GroovyClassLoader.parseClass, the first class in the source is the main one.
+        ClassNode main = unit.getAST().getModules().get(0).getClasses().get(0);
+        return new Entry(main.getName(), classes);
+    }
+
+    private @CheckForNull Entry read(File entry) {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(entry.toPath());
+        } catch (IOException x) {
+            return null; // typically not yet cached
+        }
+        try {
+            if (data.length < DIGEST_LENGTH || !Arrays.equals(digest(data, data.length - DIGEST_LENGTH), Arrays.copyOfRange(data, data.length - DIGEST_LENGTH, data.length))) {
+                throw new IOException("checksum mismatch");
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - DIGEST_LENGTH));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("unrecognized format");
+            }
+            String mainClass = in.readUTF();
+            int count = in.readInt();
+            Map<String,byte[]> classes = new HashMap<String,byte[]>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                classes.put(name, b);
+            }
+            if (!classes.containsKey(mainClass)) {
+                throw new IOException("missing " + mainClass);
+            }
+            return new Entry(mainClass, classes);
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Discarding corrupt cache entry " + entry, x);
+            if (!entry.delete()) {
+                LOG.log(Level.WARNING, "could not delete {0}", entry);
+            }
+            return null;
+        }
+    }
+
+    private void write(File entry, Entry e) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(MAGIC);
+            out.writeUTF(e.mainClass);
+            out.writeInt(e.classes.size());
+            for (Map.Entry<String,byte[]> c : e.classes.entrySet()) {
+                out.writeUTF(c.getKey());
+                out.writeInt(c.getValue().length);
+                out.write(c.getValue());
+            }
+            out.flush();
+            byte[] data = baos.toByteArray();
+            out.write(digest(data, data.length));
+            out.flush();
+            Files.createDirectories(dir.toPath());
+            File tmp = File.createTempFile(entry.getName(), TMP_SUFFIX, dir);
+            try {
+                Files.write(tmp.toPath(), baos.toByteArray());
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+            if (size.get() == -1 ? computeSize() > MAX_SIZE : size.addAndGet(baos.size()) > MAX_SIZE) {
+                scheduleCleanup();
+            }
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Failed to write " + entry, x);
+        }
+    }
+
+    /** Suffix of files still being written by {@link #write}, which are not entries. */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** Age after which a temporary file must have been abandoned, say by a crash in {@link #write}. */
+    private static final long STALE_TMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /** @return complete entries, excluding temporary files */
+    private @CheckForNull File[] entries() {
+        return dir.listFiles(new FileFilter() {
+            @Override public boolean accept(File f) {
+                return !f.getName().endsWith(TMP_SUFFIX) && f.isFile();
+            }
+        });
+    }
+
+    private long computeSize() {
+        long total = 0;
+        File[] files = entries();
+        if (files != null) {
+            for (File f : files) {
+                total += f.length();
+            }
+        }
+        size.set(total);
+        return total;
+    }
+
+    private void scheduleCleanup() {
+        if (cleanupScheduled.compareAndSet(false, true)) {
+            Timer.get().submit(new Runnable() {
+                @Override public void run() {
+                    cleanupScheduled.set(false);
+                    cleanup();
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is at most three quarters of {@link #MAX_SIZE},
+     * as well as abandoned temporary files.
+     */
+    void cleanup() {
+        File[] tmps = dir.listFiles(new FileFilter() {
+            @Override public boolean accept(File f) {
+                return f.getName().endsWith(TMP_SUFFIX) && f.lastModified() < System.currentTimeMillis() - STALE_TMP_MILLIS;
+            }
+        });
+        if (tmps != null) {
+            for (File tmp : tmps) {
+                if (!tmp.delete()) {
+                    LOG.log(Level.FINE, "could not delete {0}", tmp);
+                }
+            }
+        }
+        File[] files = entries();
+        if (files == null) {
+            return;
+        }
+        final Map<File,Long> lastModified = new HashMap<File,Long>();
+        long total = 0;
+        for (File f : files) {
+            lastModified.put(f, f.lastModified());
+            total += f.length();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override public int compare(File f1, File f2) {
+                return lastModified.get(f1).compareTo(lastModified.get(f2));
+            }
+        });
+        for (int i = 0; i < files.length && total > MAX_SIZE / 4 * 3; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+        size.set(total);
+    }
+
+    /**
+     * Describes the classes visible from a loader.
+     * @return a description, or null if the loader is not one whose contents can be identified
+     */
+    private static @CheckForNull String contents(ClassLoader loader, List<String> classpathHashes) {
+        Jenkins j = Jenkins.getInstance();
+        if (j == null) {
+            return null;
+        }
+        ClassLoader parent = loader;
+        if (!classpathHashes.isEmpty()) {
+            if (!SecureGroovyScript.classLoaders.owns(loader)) {
+                return null;
+            }
+            parent = loader.getParent();
+        }
+        if (parent != j.getPluginManager().uberClassLoader) {
+            return null;
+        }
+        List<String> plugins = new ArrayList<String>();
+        for (PluginWrapper plugin : j.getPluginManager().getPlugins()) {
+            if (plugin.isActive()) {
+                plugins.add(plugin.getShortName() + ':' + plugin.getVersion());
+            }
+        }
+        Collections.sort(plugins);
+        StringBuilder b = new StringBuilder(Jenkins.VERSION).append('\n');
+        for (String plugin : plugins) {
+            b.append(plugin).append('\n');
+        }
+        for (String hash : classpathHashes) {
+            b.append(hash).append('\n');
+        }
+        return b.toString();
+    }
+
+    private static String key(String script, boolean sandbox, String contents) {
+        StringBuilder b = new StringBuilder(fingerprint()).append('\n');
+        b.append(sandbox).append('\n');
+        b.append(contents);
+        b.append(script);
+        byte[] data = b.toString().getBytes(StandardCharsets.UTF_8);
+        return Util.toHexString(digest(data, data.length));
+    }
+
+    private static String fingerprint;
+
+    /** Identifies the compiler and transformer in use. */
+    private static synchronized String fingerprint() {
+        if (fingerprint == null) {
+            fingerprint = GroovySystem.getVersion() + '\n' + codeVersion(SandboxTransformer.class) + '\n' + codeVersion(GroovySandbox.class);
+        }
+        return fingerprint;
+    }
+
+    /** The version of the library defining a class, with the timestamp of its JAR in case that is a snapshot. */
+    private static String codeVersion(Class<?> c) {
+        StringBuilder b = new StringBuilder();
+        Package p = c.getPackage();
+        if (p != null) {
+            b.append(p.getImplementationVersion());
+        }
+        CodeSource cs = c.getProtectionDomain().getCodeSource();
+        URL location = cs != null ? cs.getLocation() : null;
+        if (location != null) {
+            b.append(' ').append(location);
+            if (location.getProtocol().equals("file")) {
+                try {
+                    b.append(' ').append(new File(location.toURI()).lastModified());
+                } catch (URISyntaxException x) {
+                    // ignore
+                }
+            }
+        }
+        return b.toString();
+    }
+
+    private static byte[] digest(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.scriptsecurity.sandbox.groovy;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.util.Timer;
+
+/**
+ * Class loaders over approved classpath entries, shared among evaluations of scripts using the same classpath.
+ * A loader is kept while any evaluation holds it, and closed once it has been idle for {@link #IDLE_TIMEOUT} milliseconds.
+ */
+class ClassLoaderPool {
+
+    private static final Logger LOG = Logger.getLogger(ClassLoaderPool.class.getName());
+
+    static long IDLE_TIMEOUT = Long.getLong(ClassLoaderPool.class.getName() + ".IDLE_TIMEOUT", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Identifies a loader.
+     * The URLs are included along with the hashes since the loader reads from them;
+     * a file changed in place gets a new hash and so a new loader.
+     */
+    private static final class Key {
+
+        final ClassLoader parent;
+        final List<URL> urls;
+        final List<String> hashes;
+
+        Key(ClassLoader parent, List<URL> urls, List<String> hashes) {
+            this.parent = parent;
+            this.urls = urls;
+            this.hashes = hashes;
+        }
+
+        @Override public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key o = (Key) obj;
+            return parent == o.parent && hashes.equals(o.hashes) && urlStrings().equals(o.urlStrings());
+        }
+
+        @Override public int hashCode() {
+            return System.identityHashCode(parent) * 31 + hashes.hashCode();
+        }
+
+        /** Avoids {@link URL#equals}, which may resolve host names. */
+        private List<String> urlStrings() {
+            List<String> r = new ArrayList<String>(urls.size());
+            for (URL url : urls) {
+                r.add(url.toString());
+            }
+            return r;
+        }
+
+        /** Whether some URL in common now has different contents. */
+        boolean supersededBy(Key other) {
+            List<String> otherURLs = other.urlStrings();
+            for (int i = 0; i < urls.size(); i++) {
+                int j = otherURLs.indexOf(urls.get(i).toString());
+                if (j != -1 && !other.hashes.get(j).equals(hashes.get(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    /** A loader in use by {@link #references} evaluations. */
+    static final class Lease {
+
+        private final Key key;
+        private final URLClassLoader loader;
+        private int references;
+        private long idleSince;
+
+        Lease(Key key, URLClassLoader loader) {
+            this.key = key;
+            this.loader = loader;
+        }
+
+        @Nonnull URLClassLoader getLoader() {
+            return loader;
+        }
+
+    }
+
+    private final Map<Key,Lease> leases = new HashMap<Key,Lease>();
+    private boolean sweepScheduled;
+
+    /**
+     * Obtains a loader, creating one if necessary. Must be followed by {@link #release}.
+     * @param parent the parent loader
+     * @param urls the classpath
+     * @param hashes hashes of the approved contents of {@code urls}, in the same order
+     */
+    @SuppressFBWarnings(value = "DP_CREATE_CLASSLOADER_INSIDE_DO_PRIVILEGED", justification = "Closed by the pool itself once idle or superseded.")
+    synchronized @Nonnull Lease acquire(@Nonnull ClassLoader parent, @Nonnull List<URL> urls, @Nonnull List<String> hashes) {
+        Key key = new Key(parent, urls, hashes);
+        Lease lease = leases.get(key);
+        if (lease == null) {
+            // Loaders over the old contents of changed files will never be requested again.
+            Iterator<Lease> it = leases.values().iterator();
+            while (it.hasNext()) {
+                Lease other = it.next();
+                if (other.references == 0 && other.key.supersededBy(key)) {
+                    it.remove();
+                    close(other);
+                }
+            }
+            lease = new Lease(key, new URLClassLoader(urls.toArray(new URL[urls.size()]), parent));
+            leases.put(key, lease);
+        }
+        lease.references++;
+        return lease;
+    }
+
+    synchronized void release(@Nonnull Lease lease) {
+        if (--lease.references == 0) {
+            lease.idleSince = System.currentTimeMillis();
+            if (!sweepScheduled) {
+                scheduleSweep(IDLE_TIMEOUT);
+            }
+        }
+    }
+
+    /** Closes loaders idle for long enough, and checks again later if any others are idle. */
+    synchronized void sweep() {
+        sweepScheduled = false;
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        Iterator<Lease> it = leases.values().iterator();
+        while (it.hasNext()) {
+            Lease lease = it.next();
+            if (lease.references == 0) {
+                if (now - lease.idleSince >= IDLE_TIMEOUT) {
+                    it.remove();
+                    close(lease);
+                } else {
+                    next = Math.min(next, lease.idleSince + IDLE_TIMEOUT - now);
+                }
+            }
+        }
+        if (next != Long.MAX_VALUE) {
+            scheduleSweep(next);
+        }
+    }
+
+    private void scheduleSweep(long delay) {
+        sweepScheduled = true;
+        Timer.get().schedule(new Runnable() {
+            @Override public void run() {
+                sweep();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /** Whether a loader was created by this pool and is still open. */
+    synchronized boolean owns(@Nonnull ClassLoader loader) {
+        for (Lease lease : leases.values()) {
+            if (lease.loader == loader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Number of loaders currently open. */
+    synchronized int size() {
+        return leases.size();
+    }
+
+    private void close(Lease lease) {
+        closing(lease.loader);
+        try {
+            lease.loader.close();
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Failed to close " + lease.key.urls, x);
+        }
+    }
+
+    /** Called before a loader is closed, while no evaluation is using it. */
+    protected void closing(@Nonnull URLClassLoader loader) {}
+
+}
@@ -31,12 +31,14 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.LinkedHashSet;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import org.apache.commons.lang.ClassUtils;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.EnumeratingWhitelist;
 
 /**
  * Assists in determination of which method or other JVM element is actually about to be called by Groovy.
@@ -144,7 +146,24 @@ class GroovyCallSiteSelector {
      * @param args a set of actual arguments
      */
     public static @CheckForNull Method method(@Nonnull Object receiver, @Nonnull String method, @Nonnull Object[] args) {
-        for (Class<?> c : types(receiver)) {
+        Class<?> receiverType = receiver.getClass();
+        CallShape shape = CallShape.of(receiverType, method, args);
+        if (shape == null) {
+            return findMethod(receiver, method, args);
+        }
+        ConcurrentMap<CallShape,Method> cache = methodCache.get(receiverType);
+        Method m = cache.get(shape);
+        if (m == null) {
+            m = findMethod(receiver, method, args);
+            if (m != null && cache.size() < MAX_CALL_SHAPES) {
+                cache.putIfAbsent(shape, m);
+            }
+        }
+        return m;
+    }
+
+    private static @CheckForNull Method findMethod(@Nonnull Object receiver, @Nonnull String method, @Nonnull Object[] args) {
+        for (Class<?> c : EnumeratingWhitelist.supertypes(receiver.getClass())) {
             Method candidate = findMatchingMethod(c, method, args);
             if (candidate != null) {
                 return candidate;
@@ -159,6 +178,94 @@ class GroovyCallSiteSelector {
         return null;
     }
 
+    /**
+     * Positive results of {@link #method}, held by each receiver type.
+     * Since the entries thus live as long as the receiver type, they may only mention types visible from its class loader;
+     * see {@link CallShape#of}.
+     * Misses are not recorded, since a script may call any number of nonexistent methods;
+     * and once a type has {@link #MAX_CALL_SHAPES} entries, further lookups are simply not cached.
+     */
+    private static final ClassValue<ConcurrentMap<CallShape,Method>> methodCache = new ClassValue<ConcurrentMap<CallShape,Method>>() {
+        @Override protected ConcurrentMap<CallShape,Method> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<CallShape,Method>();
+        }
+    };
+
+    /** Maximum number of call shapes cached per receiver type. */
+    static /* not final, for tests */ int MAX_CALL_SHAPES = Integer.getInteger(GroovyCallSiteSelector.class.getName() + ".MAX_CALL_SHAPES", 1000);
+
+    // Only for testing
+    static int cachedCallShapes(Class<?> receiverType) {
+        return methodCache.get(receiverType).size();
+    }
+
+    /**
+     * A method name plus the runtime types of the arguments ({@code null} for a null argument),
+     * which together with the receiver type determine the result of {@link #method}.
+     */
+    static final class CallShape {
+
+        private final String method;
+        private final Class<?>[] argumentTypes;
+        private final int hashCode;
+
+        private CallShape(String method, Class<?>[] argumentTypes) {
+            this.method = method;
+            this.argumentTypes = argumentTypes;
+            hashCode = method.hashCode() * 31 + Arrays.hashCode(argumentTypes);
+        }
+
+        /**
+         * @return a cache key, or null if the call should not be cached:
+         *         because the match depends on an argument value rather than its type (cf. {@link #isInstancePrimitive}),
+         *         or because some argument type might not otherwise be retained as long as the receiver type
+         */
+        static @CheckForNull CallShape of(@Nonnull Class<?> receiverType, @Nonnull String method, @Nonnull Object[] args) {
+            Class<?>[] argumentTypes = new Class<?>[args.length];
+            for (int i = 0; i < args.length; i++) {
+                Object arg = args[i];
+                if (arg == null) {
+                    continue;
+                }
+                if (arg instanceof Long) {
+                    return null;
+                }
+                Class<?> argumentType = arg.getClass();
+                if (!isVisible(argumentType, receiverType.getClassLoader())) {
+                    return null;
+                }
+                argumentTypes[i] = argumentType;
+            }
+            return new CallShape(method, argumentTypes);
+        }
+
+        private static boolean isVisible(Class<?> type, @CheckForNull ClassLoader from) {
+            ClassLoader loader = type.getClassLoader();
+            if (loader == null) {
+                return true;
+            }
+            for (ClassLoader l = from; l != null; l = l.getParent()) {
+                if (l == loader) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override public boolean equals(Object obj) {
+            if (!(obj instanceof CallShape)) {
+                return false;
+            }
+            CallShape o = (CallShape) obj;
+            return hashCode == o.hashCode && method.equals(o.method) && Arrays.equals(argumentTypes, o.argumentTypes);
+        }
+
+        @Override public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
     public static @CheckForNull Constructor<?> constructor(@Nonnull Class<?> receiver, @Nonnull Object[] args) {
         Constructor<?>[] constructors = receiver.getDeclaredConstructors();
         Constructor<?> candidate = null;
@@ -191,6 +298,23 @@ class GroovyCallSiteSelector {
         return findMatchingMethod(receiver, method, args);
     }
 
+    /**
+     * Chooses the most specific of some methods which would accept a given set of actual arguments.
+     * @param methods candidate methods, such as those of a given name
+     * @param args a set of actual arguments
+     */
+    static @CheckForNull Method selectMethod(@Nonnull Iterable<Method> methods, @Nonnull Object[] args) {
+        Method candidate = null;
+        for (Method m : methods) {
+            if (matches(m.getParameterTypes(), args, m.isVarArgs())) {
+                if (candidate == null || isMoreSpecific(m, m.getParameterTypes(), m.isVarArgs(), candidate, candidate.getParameterTypes(), candidate.isVarArgs())) {
+                    candidate = m;
+                }
+            }
+        }
+        return candidate;
+    }
+
     private static Method findMatchingMethod(Class<?> receiver, String method, Object[] args) {
         Method candidate = null;
         for (Method m : receiver.getDeclaredMethods()) {
@@ -204,7 +328,7 @@ class GroovyCallSiteSelector {
     }
 
     public static @CheckForNull Field field(@Nonnull Object receiver, @Nonnull String field) {
-        for (Class<?> c : types(receiver)) {
+        for (Class<?> c : EnumeratingWhitelist.supertypes(receiver.getClass())) {
             for (Field f : c.getDeclaredFields()) {
                 if (f.getName().equals(field)) {
                     return f;
@@ -223,23 +347,6 @@ class GroovyCallSiteSelector {
         return null;
     }
 
-    private static Iterable<Class<?>> types(@Nonnull Object o) {
-        Set<Class<?>> types = new LinkedHashSet<Class<?>>();
-        visitTypes(types, o.getClass());
-        return types;
-    }
-    private static void visitTypes(@Nonnull Set<Class<?>> types, @Nonnull Class<?> c) {
-        Class<?> s = c.getSuperclass();
-        if (s != null) {
-            visitTypes(types, s);
-        }
-        for (Class<?> i : c.getInterfaces()) {
-            visitTypes(types, i);
-        }
-        // Visit supertypes first.
-        types.add(c);
-    }
-
     // TODO nowhere close to implementing http://docs.oracle.com/javase/specs/jls/se8/html/jls-15.html#jls-15.12.2.5
     private static boolean isMoreSpecific(AccessibleObject more, Class<?>[] moreParams, boolean moreVarArgs, AccessibleObject less, Class<?>[] lessParams, boolean lessVarArgs) { // TODO clumsy arguments pending Executable in Java 8
         if (lessVarArgs && !moreVarArgs) {
@@ -25,6 +25,7 @@
 package org.jenkinsci.plugins.scriptsecurity.sandbox.groovy;
 
 import com.google.common.collect.ImmutableSet;
+import groovy.lang.GString;
 import groovy.lang.GroovyRuntimeException;
 import groovy.lang.MetaMethod;
 import groovy.lang.MissingMethodException;
@@ -33,9 +34,16 @@ import groovy.lang.Script;
 import hudson.Functions;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
@@ -78,6 +86,98 @@ final class SandboxInterceptor extends GroovyInterceptor {
         ProcessGroovyMethods.class,
     };
 
+    /** A declared method of one of {@link #DGM_CLASSES}. */
+    private static final class DgmMethod {
+
+        final Method method;
+        /** The self (first parameter) type, or null for methods taking only varargs, which could accept any receiver. */
+        final @CheckForNull Class<?> selfType;
+
+        DgmMethod(Method method, @CheckForNull Class<?> selfType) {
+            this.method = method;
+            this.selfType = selfType;
+        }
+
+        boolean accepts(@CheckForNull Object self) {
+            // Deliberately lenient; GroovyCallSiteSelector makes the actual decision.
+            return selfType == null || self == null || selfType.isPrimitive() || selfType.isInstance(self) || selfType == String.class && self instanceof GString;
+        }
+
+    }
+
+    /**
+     * Declared methods of each of {@link #DGM_CLASSES}, by name, in the order of {@link Class#getDeclaredMethods}
+     * so that ties in {@link GroovyCallSiteSelector#selectMethod} are broken as {@link GroovyCallSiteSelector#staticMethod} would.
+     */
+    private static final Map<Class<?>,Map<String,List<DgmMethod>>> DGM_METHODS = new HashMap<Class<?>,Map<String,List<DgmMethod>>>();
+
+    /**
+     * Positive results of {@link #dgmStaticMethod} for each of {@link #DGM_CLASSES}, held by receiver type
+     * and bounded as in {@link GroovyCallSiteSelector#method}.
+     */
+    private static final Map<Class<?>,ClassValue<ConcurrentMap<GroovyCallSiteSelector.CallShape,Method>>> DGM_METHOD_CACHE = new HashMap<Class<?>,ClassValue<ConcurrentMap<GroovyCallSiteSelector.CallShape,Method>>>();
+
+    static {
+        for (Class<?> dgmClass : DGM_CLASSES) {
+            Map<String,List<DgmMethod>> byName = new HashMap<String,List<DgmMethod>>();
+            for (Method m : dgmClass.getDeclaredMethods()) {
+                Class<?>[] parameterTypes = m.getParameterTypes();
+                if (parameterTypes.length == 0) {
+                    continue; // cannot take a receiver
+                }
+                List<DgmMethod> methods = byName.get(m.getName());
+                if (methods == null) {
+                    methods = new ArrayList<DgmMethod>(1);
+                    byName.put(m.getName(), methods);
+                }
+                methods.add(new DgmMethod(m, m.isVarArgs() && parameterTypes.length == 1 ? null : parameterTypes[0]));
+            }
+            DGM_METHODS.put(dgmClass, byName);
+            DGM_METHOD_CACHE.put(dgmClass, new ClassValue<ConcurrentMap<GroovyCallSiteSelector.CallShape,Method>>() {
+                @Override protected ConcurrentMap<GroovyCallSiteSelector.CallShape,Method> computeValue(Class<?> type) {
+                    return new ConcurrentHashMap<GroovyCallSiteSelector.CallShape,Method>();
+                }
+            });
+        }
+    }
+
+    /**
+     * Like {@link GroovyCallSiteSelector#staticMethod} on a GDK class, but using {@link #DGM_METHODS}.
+     * @param selfArgs the receiver followed by the actual arguments
+     */
+    private static @CheckForNull Method dgmStaticMethod(@Nonnull Class<?> dgmClass, @Nonnull String method, @Nonnull Object[] selfArgs) {
+        List<DgmMethod> methods = DGM_METHODS.get(dgmClass).get(method);
+        if (methods == null) {
+            return null;
+        }
+        Object self = selfArgs[0];
+        GroovyCallSiteSelector.CallShape shape = self == null ? null : GroovyCallSiteSelector.CallShape.of(self.getClass(), method, selfArgs);
+        ConcurrentMap<GroovyCallSiteSelector.CallShape,Method> cache = null;
+        if (shape != null) {
+            cache = DGM_METHOD_CACHE.get(dgmClass).get(self.getClass());
+            Method m = cache.get(shape);
+            if (m != null) {
+                return m;
+            }
+        }
+        List<Method> candidates = new ArrayList<Method>(methods.size());
+        for (DgmMethod m : methods) {
+            if (m.accepts(self)) {
+                candidates.add(m.method);
+            }
+        }
+        Method m = GroovyCallSiteSelector.selectMethod(candidates, selfArgs);
+        if (m != null && cache != null && cache.size() < GroovyCallSiteSelector.MAX_CALL_SHAPES) {
+            cache.putIfAbsent(shape, m);
+        }
+        return m;
+    }
+
+    // Only for testing
+    static int cachedDgmCallShapes(Class<?> dgmClass, Class<?> receiverType) {
+        return DGM_METHOD_CACHE.get(dgmClass).get(receiverType).size();
+    }
+
     /** @see NumberMathModificationInfo */
     private static final Set<String> NUMBER_MATH_NAMES = ImmutableSet.of("plus", "minus", "multiply", "div", "compareTo", "or", "and", "xor", "intdiv", "mod", "leftShift", "rightShift", "rightShiftUnsigned");
 
@@ -94,7 +194,7 @@ final class SandboxInterceptor extends GroovyInterceptor {
             selfArgs[0] = receiver;
             System.arraycopy(args, 0, selfArgs, 1, args.length);
             for (Class<?> dgmClass : DGM_CLASSES) {
-                Method dgmMethod = GroovyCallSiteSelector.staticMethod(dgmClass, method, selfArgs);
+                Method dgmMethod = dgmStaticMethod(dgmClass, method, selfArgs);
                 if (dgmMethod != null) {
                     if (whitelist.permitsStaticMethod(dgmMethod, selfArgs)) {
                         return super.onMethodCall(invoker, receiver, method, args);
@@ -155,74 +255,15 @@ final class SandboxInterceptor extends GroovyInterceptor {
         if (receiver instanceof Script && !property.equals("binding") && !property.equals("metaClass")) {
             return super.onSetProperty(invoker, receiver, property, value);
         }
-        Rejector rejector = null; // avoid creating exception objects unless and until thrown
-        // https://github.com/kohsuke/groovy-sandbox/issues/7 need to explicitly check for getters and setters:
-        Object[] valueArg = new Object[] {value};
-        String setter = "set" + Functions.capitalize(property);
-        final Method setterMethod = GroovyCallSiteSelector.method(receiver, setter, valueArg);
-        if (setterMethod != null) {
-            if (whitelist.permitsMethod(setterMethod, receiver, valueArg)) {
+        PropertyAccessor rejected = null; // avoid creating exception objects unless and until thrown
+        for (PropertyAccessor accessor : setters(receiver, property, value)) {
+            if (accessor.permits(whitelist, receiver, property, value)) {
                 return super.onSetProperty(invoker, receiver, property, value);
-            } else if (rejector == null) {
-                rejector = new Rejector() {
-                    @Override public RejectedAccessException reject() {
-                        return StaticWhitelist.rejectMethod(setterMethod);
-                    }
-                };
+            } else if (rejected == null) {
+                rejected = accessor;
             }
         }
-        Object[] propertyValueArgs = new Object[] {property, value};
-        final Method setPropertyMethod = GroovyCallSiteSelector.method(receiver, "setProperty", propertyValueArgs);
-        if (setPropertyMethod != null) {
-            if (whitelist.permitsMethod(setPropertyMethod, receiver, propertyValueArgs)) {
-                return super.onSetProperty(invoker, receiver, property, value);
-            } else if (rejector == null) {
-                rejector = new Rejector() {
-                    @Override public RejectedAccessException reject() {
-                        return StaticWhitelist.rejectMethod(setPropertyMethod, receiver.getClass().getName() + "." + property);
-                    }
-                };
-            }
-        }
-        final Field instanceField = GroovyCallSiteSelector.field(receiver, property);
-        if (instanceField != null) {
-            if (whitelist.permitsFieldSet(instanceField, receiver, value)) {
-                return super.onSetProperty(invoker, receiver, property, value);
-            } else if (rejector == null) {
-                rejector = new Rejector() {
-                    @Override public RejectedAccessException reject() {
-                        return StaticWhitelist.rejectField(instanceField);
-                    }
-                };
-            }
-        }
-        if (receiver instanceof Class) {
-            final Method staticSetterMethod = GroovyCallSiteSelector.staticMethod((Class) receiver, setter, valueArg);
-            if (staticSetterMethod != null) {
-                if (whitelist.permitsStaticMethod(staticSetterMethod, valueArg)) {
-                    return super.onSetProperty(invoker, receiver, property, value);
-                } else if (rejector == null) {
-                    rejector = new Rejector() {
-                        @Override public RejectedAccessException reject() {
-                            return StaticWhitelist.rejectStaticMethod(staticSetterMethod);
-                        }
-                    };
-                }
-            }
-            final Field staticField = GroovyCallSiteSelector.staticField((Class) receiver, property);
-            if (staticField != null) {
-                if (whitelist.permitsStaticFieldSet(staticField, value)) {
-                    return super.onSetProperty(invoker, receiver, property, value);
-                } else if (rejector == null) {
-                    rejector = new Rejector() {
-                        @Override public RejectedAccessException reject() {
-                            return StaticWhitelist.rejectStaticField(staticField);
-                        }
-                    };
-                }
-            }
-        }
-        throw rejector != null ? rejector.reject() : unclassifiedField(receiver, property);
+        throw rejected != null ? rejected.reject(receiver, property) : unclassifiedField(receiver, property);
     }
 
     @Override public Object onGetProperty(GroovyInterceptor.Invoker invoker, final Object receiver, final String property) throws Throwable {
@@ -238,137 +279,270 @@ final class SandboxInterceptor extends GroovyInterceptor {
         if (property.equals("length") && receiver.getClass().isArray()) {
             return super.onGetProperty(invoker, receiver, property);
         }
-        Rejector rejector = null;
-        Object[] noArgs = new Object[] {};
-        String getter = "get" + Functions.capitalize(property);
-        final Method getterMethod = GroovyCallSiteSelector.method(receiver, getter, noArgs);
-        if (getterMethod != null) {
-            if (whitelist.permitsMethod(getterMethod, receiver, noArgs)) {
+        Getters getters = getters(receiver, property);
+        PropertyAccessor rejected = null;
+        for (PropertyAccessor accessor : getters.accessors) {
+            if (accessor.permits(whitelist, receiver, property, null)) {
                 return super.onGetProperty(invoker, receiver, property);
-            } else if (rejector == null) {
-                rejector = new Rejector() {
-                    @Override public RejectedAccessException reject() {
-                        return StaticWhitelist.rejectMethod(getterMethod);
-                    }
-                };
+            } else if (rejected == null) {
+                rejected = accessor;
             }
         }
-        String booleanGetter = "is" + Functions.capitalize(property);
-        final Method booleanGetterMethod = GroovyCallSiteSelector.method(receiver, booleanGetter, noArgs);
-        if (booleanGetterMethod != null && booleanGetterMethod.getReturnType() == boolean.class) {
-            if (whitelist.permitsMethod(booleanGetterMethod, receiver, noArgs)) {
+        MetaMethod metaMethod = findMetaMethod(receiver, getters.getter, NO_ARGS);
+        if (metaMethod instanceof ClosureMetaMethod) {
+            return super.onGetProperty(invoker, receiver, property);
+        }
+        // TODO similar metaclass handling for isXXX, static methods (if possible?), setters
+        for (PropertyAccessor accessor : getters.staticAccessors) {
+            if (accessor.permits(whitelist, receiver, property, null)) {
                 return super.onGetProperty(invoker, receiver, property);
-            } else if (rejector == null) {
-                rejector = new Rejector() {
-                    @Override public RejectedAccessException reject() {
-                        return StaticWhitelist.rejectMethod(booleanGetterMethod);
-                    }
-                };
+            } else if (rejected == null) {
+                rejected = accessor;
+            }
+        }
+        if (mpe != null) {
+            throw mpe;
+        }
+        throw rejected != null ? rejected.reject(receiver, property) : unclassifiedField(receiver, property);
+    }
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * Resolved {@link PropertyAccessors}, held by the receiver type, or for a {@link Class} receiver by the receiver itself.
+     * Only the members are cached; each access is still checked against the whitelist, which may be specific to the interceptor or the receiver.
+     * Every member is visible from the holding class (or belongs to Groovy itself), as are the setter keys; see {@link GroovyCallSiteSelector.CallShape#of}.
+     * Only properties with an accessor of their own are cached; see {@link #isNamed}.
+     */
+    private static final ClassValue<PropertyAccessors> instancePropertyAccessors = new ClassValue<PropertyAccessors>() {
+        @Override protected PropertyAccessors computeValue(Class<?> type) {
+            return new PropertyAccessors();
+        }
+    };
+    private static final ClassValue<PropertyAccessors> staticPropertyAccessors = new ClassValue<PropertyAccessors>() {
+        @Override protected PropertyAccessors computeValue(Class<?> type) {
+            return new PropertyAccessors();
+        }
+    };
+
+    private static final class PropertyAccessors {
+        final ConcurrentMap<String,Getters> getters = new ConcurrentHashMap<String,Getters>();
+        /** keyed by the setter name and the value type */
+        final ConcurrentMap<GroovyCallSiteSelector.CallShape,PropertyAccessor[]> setters = new ConcurrentHashMap<GroovyCallSiteSelector.CallShape,PropertyAccessor[]>();
+    }
+
+    private static PropertyAccessors propertyAccessors(Object receiver) {
+        return receiver instanceof Class ? staticPropertyAccessors.get((Class<?>) receiver) : instancePropertyAccessors.get(receiver.getClass());
+    }
+
+    private static @Nonnull Getters getters(@Nonnull Object receiver, @Nonnull String property) {
+        ConcurrentMap<String,Getters> cache = propertyAccessors(receiver).getters;
+        Getters getters = cache.get(property);
+        if (getters == null) {
+            getters = resolveGetters(receiver, property);
+            if (isNamed(getters.accessors) || isNamed(getters.staticAccessors)) {
+                cache.putIfAbsent(property, getters);
             }
         }
+        return getters;
+    }
+
+    /** Ways to read a property, in the order {@link #onGetProperty} tries them. */
+    private static final class Getters {
+        final String getter;
+        /** checked before the metaclass */
+        final PropertyAccessor[] accessors;
+        /** checked after the metaclass */
+        final PropertyAccessor[] staticAccessors;
+        Getters(String getter, List<PropertyAccessor> accessors, List<PropertyAccessor> staticAccessors) {
+            this.getter = getter;
+            this.accessors = accessors.toArray(new PropertyAccessor[accessors.size()]);
+            this.staticAccessors = staticAccessors.toArray(new PropertyAccessor[staticAccessors.size()]);
+        }
+    }
+
+    private static Getters resolveGetters(Object receiver, String property) {
+        List<PropertyAccessor> accessors = new ArrayList<PropertyAccessor>();
+        String getter = "get" + Functions.capitalize(property);
+        Method getterMethod = GroovyCallSiteSelector.method(receiver, getter, NO_ARGS);
+        if (getterMethod != null) {
+            accessors.add(new PropertyAccessor(AccessorKind.GETTER, getterMethod));
+        }
+        String booleanGetter = "is" + Functions.capitalize(property);
+        Method booleanGetterMethod = GroovyCallSiteSelector.method(receiver, booleanGetter, NO_ARGS);
+        if (booleanGetterMethod != null && booleanGetterMethod.getReturnType() == boolean.class) {
+            accessors.add(new PropertyAccessor(AccessorKind.GETTER, booleanGetterMethod));
+        }
         // look for GDK methods
         Object[] selfArgs = new Object[] {receiver};
         for (Class<?> dgmClass : DGM_CLASSES) {
-            final Method dgmGetterMethod = GroovyCallSiteSelector.staticMethod(dgmClass, getter, selfArgs);
+            Method dgmGetterMethod = dgmStaticMethod(dgmClass, getter, selfArgs);
             if (dgmGetterMethod != null) {
-                if (whitelist.permitsStaticMethod(dgmGetterMethod, selfArgs)) {
-                    return super.onGetProperty(invoker, receiver, property);
-                } else if (rejector == null) {
-                    rejector = new Rejector() {
-                        @Override
-                        public RejectedAccessException reject() {
-                            return StaticWhitelist.rejectStaticMethod(dgmGetterMethod);
-                        }
-                    };
-                }
+                accessors.add(new PropertyAccessor(AccessorKind.DGM_GETTER, dgmGetterMethod));
             }
-            final Method dgmBooleanGetterMethod = GroovyCallSiteSelector.staticMethod(dgmClass, booleanGetter, selfArgs);
+            Method dgmBooleanGetterMethod = dgmStaticMethod(dgmClass, booleanGetter, selfArgs);
             if (dgmBooleanGetterMethod != null && dgmBooleanGetterMethod.getReturnType() == boolean.class) {
-                if (whitelist.permitsStaticMethod(dgmBooleanGetterMethod, selfArgs)) {
-                    return super.onGetProperty(invoker, receiver, property);
-                } else if (rejector == null) {
-                    rejector = new Rejector() {
-                        @Override
-                        public RejectedAccessException reject() {
-                            return StaticWhitelist.rejectStaticMethod(dgmBooleanGetterMethod);
-                        }
-                    };
-                }
+                accessors.add(new PropertyAccessor(AccessorKind.DGM_GETTER, dgmBooleanGetterMethod));
             }
         }
-        final Field instanceField = GroovyCallSiteSelector.field(receiver, property);
+        Field instanceField = GroovyCallSiteSelector.field(receiver, property);
         if (instanceField != null) {
-            if (whitelist.permitsFieldGet(instanceField, receiver)) {
-                return super.onGetProperty(invoker, receiver, property);
-            } else if (rejector == null) {
-                rejector = new Rejector() {
-                    @Override public RejectedAccessException reject() {
-                        return StaticWhitelist.rejectField(instanceField);
-                    }
-                };
-            }
+            accessors.add(new PropertyAccessor(AccessorKind.FIELD_GET, instanceField));
         }
         // GroovyObject property access
-        Object[] propertyArg = new Object[] {property};
-        final Method getPropertyMethod = GroovyCallSiteSelector.method(receiver, "getProperty", propertyArg);
+        Method getPropertyMethod = GroovyCallSiteSelector.method(receiver, "getProperty", new Object[] {property});
         if (getPropertyMethod != null) {
-            if (whitelist.permitsMethod(getPropertyMethod, receiver, propertyArg)) {
-                return super.onGetProperty(invoker, receiver, property);
-            } else if (rejector == null) {
-                rejector = new Rejector() {
-                    @Override public RejectedAccessException reject() {
-                        return StaticWhitelist.rejectMethod(getPropertyMethod, receiver.getClass().getName() + "." + property);
-                    }
-                };
-            }
-        }
-        MetaMethod metaMethod = findMetaMethod(receiver, getter, noArgs);
-        if (metaMethod instanceof ClosureMetaMethod) {
-            return super.onGetProperty(invoker, receiver, property);
+            accessors.add(new PropertyAccessor(AccessorKind.GET_PROPERTY, getPropertyMethod));
         }
-        // TODO similar metaclass handling for isXXX, static methods (if possible?), setters
+        List<PropertyAccessor> staticAccessors = new ArrayList<PropertyAccessor>();
         if (receiver instanceof Class) {
-            final Method staticGetterMethod = GroovyCallSiteSelector.staticMethod((Class) receiver, getter, noArgs);
+            Method staticGetterMethod = GroovyCallSiteSelector.staticMethod((Class) receiver, getter, NO_ARGS);
             if (staticGetterMethod != null) {
-                if (whitelist.permitsStaticMethod(staticGetterMethod, noArgs)) {
-                    return super.onGetProperty(invoker, receiver, property);
-                } else if (rejector == null) {
-                    rejector = new Rejector() {
-                        @Override public RejectedAccessException reject() {
-                            return StaticWhitelist.rejectStaticMethod(staticGetterMethod);
-                        }
-                    };
-                }
+                staticAccessors.add(new PropertyAccessor(AccessorKind.STATIC_GETTER, staticGetterMethod));
             }
-            final Method staticBooleanGetterMethod = GroovyCallSiteSelector.staticMethod((Class) receiver, booleanGetter, noArgs);
+            Method staticBooleanGetterMethod = GroovyCallSiteSelector.staticMethod((Class) receiver, booleanGetter, NO_ARGS);
             if (staticBooleanGetterMethod != null && staticBooleanGetterMethod.getReturnType() == boolean.class) {
-                if (whitelist.permitsStaticMethod(staticBooleanGetterMethod, noArgs)) {
-                    return super.onGetProperty(invoker, receiver, property);
-                } else if (rejector == null) {
-                    rejector = new Rejector() {
-                        @Override public RejectedAccessException reject() {
-                            return StaticWhitelist.rejectStaticMethod(staticBooleanGetterMethod);
-                        }
-                    };
-                }
+                staticAccessors.add(new PropertyAccessor(AccessorKind.STATIC_GETTER, staticBooleanGetterMethod));
             }
-            final Field staticField = GroovyCallSiteSelector.staticField((Class) receiver, property);
+            Field staticField = GroovyCallSiteSelector.staticField((Class) receiver, property);
             if (staticField != null) {
-                if (whitelist.permitsStaticFieldGet(staticField)) {
-                    return super.onGetProperty(invoker, receiver, property);
-                } else if (rejector == null) {
-                    rejector = new Rejector() {
-                        @Override public RejectedAccessException reject() {
-                            return StaticWhitelist.rejectStaticField(staticField);
-                        }
-                    };
-                }
+                staticAccessors.add(new PropertyAccessor(AccessorKind.STATIC_FIELD_GET, staticField));
             }
         }
-        if (mpe != null) {
-            throw mpe;
+        return new Getters(getter, accessors, staticAccessors);
+    }
+
+    /** Ways to write a property, in the order {@link #onSetProperty} tries them. */
+    private static @Nonnull PropertyAccessor[] setters(@Nonnull Object receiver, @Nonnull String property, @CheckForNull Object value) {
+        Class<?> holder = receiver instanceof Class ? (Class<?>) receiver : receiver.getClass();
+        GroovyCallSiteSelector.CallShape shape = GroovyCallSiteSelector.CallShape.of(holder, property, new Object[] {value});
+        if (shape == null) {
+            return resolveSetters(receiver, property, value);
         }
-        throw rejector != null ? rejector.reject() : unclassifiedField(receiver, property);
+        ConcurrentMap<GroovyCallSiteSelector.CallShape,PropertyAccessor[]> cache = propertyAccessors(receiver).setters;
+        PropertyAccessor[] setters = cache.get(shape);
+        if (setters == null) {
+            setters = resolveSetters(receiver, property, value);
+            if (isNamed(setters)) {
+                cache.putIfAbsent(shape, setters);
+            }
+        }
+        return setters;
+    }
+
+    /**
+     * Whether some accessor is specific to the property name.
+     * Only such results are cached, since names the script chooses freely, as in {@code map."$key"}, would otherwise fill the cache without limit.
+     */
+    private static boolean isNamed(PropertyAccessor[] accessors) {
+        for (PropertyAccessor accessor : accessors) {
+            if (accessor.kind != AccessorKind.GET_PROPERTY && accessor.kind != AccessorKind.SET_PROPERTY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Only for testing
+    static int cachedPropertyAccessors(Class<?> type) {
+        PropertyAccessors accessors = instancePropertyAccessors.get(type);
+        return accessors.getters.size() + accessors.setters.size();
+    }
+
+    private static PropertyAccessor[] resolveSetters(Object receiver, String property, Object value) {
+        List<PropertyAccessor> accessors = new ArrayList<PropertyAccessor>();
+        // https://github.com/kohsuke/groovy-sandbox/issues/7 need to explicitly check for getters and setters:
+        Object[] valueArg = new Object[] {value};
+        String setter = "set" + Functions.capitalize(property);
+        Method setterMethod = GroovyCallSiteSelector.method(receiver, setter, valueArg);
+        if (setterMethod != null) {
+            accessors.add(new PropertyAccessor(AccessorKind.SETTER, setterMethod));
+        }
+        Method setPropertyMethod = GroovyCallSiteSelector.method(receiver, "setProperty", new Object[] {property, value});
+        if (setPropertyMethod != null) {
+            accessors.add(new PropertyAccessor(AccessorKind.SET_PROPERTY, setPropertyMethod));
+        }
+        Field instanceField = GroovyCallSiteSelector.field(receiver, property);
+        if (instanceField != null) {
+            accessors.add(new PropertyAccessor(AccessorKind.FIELD_SET, instanceField));
+        }
+        if (receiver instanceof Class) {
+            Method staticSetterMethod = GroovyCallSiteSelector.staticMethod((Class) receiver, setter, valueArg);
+            if (staticSetterMethod != null) {
+                accessors.add(new PropertyAccessor(AccessorKind.STATIC_SETTER, staticSetterMethod));
+            }
+            Field staticField = GroovyCallSiteSelector.staticField((Class) receiver, property);
+            if (staticField != null) {
+                accessors.add(new PropertyAccessor(AccessorKind.STATIC_FIELD_SET, staticField));
+            }
+        }
+        return accessors.toArray(new PropertyAccessor[accessors.size()]);
+    }
+
+    private enum AccessorKind {
+        GETTER, SETTER, GET_PROPERTY, SET_PROPERTY, DGM_GETTER, STATIC_GETTER, STATIC_SETTER, FIELD_GET, FIELD_SET, STATIC_FIELD_GET, STATIC_FIELD_SET
+    }
+
+    /** A member which might be used to access a property, with the whitelist check and rejection appropriate to it. */
+    private static final class PropertyAccessor {
+
+        private final AccessorKind kind;
+        private final Member member;
+
+        PropertyAccessor(AccessorKind kind, Member member) {
+            this.kind = kind;
+            this.member = member;
+        }
+
+        boolean permits(Whitelist whitelist, Object receiver, String property, Object value) {
+            switch (kind) {
+            case GETTER:
+                return whitelist.permitsMethod((Method) member, receiver, NO_ARGS);
+            case SETTER:
+                return whitelist.permitsMethod((Method) member, receiver, new Object[] {value});
+            case GET_PROPERTY:
+                return whitelist.permitsMethod((Method) member, receiver, new Object[] {property});
+            case SET_PROPERTY:
+                return whitelist.permitsMethod((Method) member, receiver, new Object[] {property, value});
+            case DGM_GETTER:
+                return whitelist.permitsStaticMethod((Method) member, new Object[] {receiver});
+            case STATIC_GETTER:
+                return whitelist.permitsStaticMethod((Method) member, NO_ARGS);
+            case STATIC_SETTER:
+                return whitelist.permitsStaticMethod((Method) member, new Object[] {value});
+            case FIELD_GET:
+                return whitelist.permitsFieldGet((Field) member, receiver);
+            case FIELD_SET:
+                return whitelist.permitsFieldSet((Field) member, receiver, value);
+            case STATIC_FIELD_GET:
+                return whitelist.permitsStaticFieldGet((Field) member);
+            case STATIC_FIELD_SET:
+                return whitelist.permitsStaticFieldSet((Field) member, value);
+            default:
+                throw new AssertionError(kind);
+            }
+        }
+
+        @Nonnull RejectedAccessException reject(Object receiver, String property) {
+            switch (kind) {
+            case GETTER:
+            case SETTER:
+                return StaticWhitelist.rejectMethod((Method) member);
+            case GET_PROPERTY:
+            case SET_PROPERTY:
+                return StaticWhitelist.rejectMethod((Method) member, receiver.getClass().getName() + "." + property);
+            case DGM_GETTER:
+            case STATIC_GETTER:
+            case STATIC_SETTER:
+                return StaticWhitelist.rejectStaticMethod((Method) member);
+            case FIELD_GET:
+            case FIELD_SET:
+                return StaticWhitelist.rejectField((Field) member);
+            default:
+                return StaticWhitelist.rejectStaticField((Field) member);
+            }
+        }
+
     }
 
     @Override
@@ -387,11 +561,6 @@ final class SandboxInterceptor extends GroovyInterceptor {
         return new RejectedAccessException("unclassified field " + EnumeratingWhitelist.getName(receiver.getClass()) + " " + property);
     }
 
-    // TODO Java 8: @FunctionalInterface
-    private interface Rejector {
-        @Nonnull RejectedAccessException reject();
-    }
-
     @Override public Object onGetAttribute(Invoker invoker, Object receiver, String attribute) throws Throwable {
         Field field = GroovyCallSiteSelector.field(receiver, attribute);
         if (field == null) {
@@ -429,7 +598,7 @@ final class SandboxInterceptor extends GroovyInterceptor {
         }
         args = new Object[] {receiver, index};
         for (Class<?> dgm : DGM_CLASSES) {
-            method = GroovyCallSiteSelector.staticMethod(dgm, "getAt", args);
+            method = dgmStaticMethod(dgm, "getAt", args);
             if (method != null) {
                 if (whitelist.permitsStaticMethod(method, args)) {
                     return super.onGetArray(invoker, receiver, index);
@@ -456,7 +625,7 @@ final class SandboxInterceptor extends GroovyInterceptor {
         }
         args = new Object[] {receiver, index, value};
         for (Class<?> dgm : DGM_CLASSES) {
-            method = GroovyCallSiteSelector.staticMethod(dgm, "putAt", args);
+            method = dgmStaticMethod(dgm, "putAt", args);
             if (method != null) {
                 if (whitelist.permitsStaticMethod(method, args)) {
                     return super.onSetArray(invoker, receiver, index, value);
@@ -40,11 +40,16 @@ class SandboxResolvingClassLoader extends ClassLoader {
         }
     });
 
+    static {
+        // Defines no classes of its own, so needs no per-loader lock; lookups are served by the caches above.
+        registerAsParallelCapable();
+    }
+
     SandboxResolvingClassLoader(ClassLoader parent) {
         super(parent);
     }
 
-    @Override protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+    @Override protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
         if (name.startsWith("org.kohsuke.groovy.sandbox.")) {
             return this.getClass().getClassLoader().loadClass(name);
         } else {
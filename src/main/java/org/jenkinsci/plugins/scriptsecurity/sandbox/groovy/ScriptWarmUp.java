@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.scriptsecurity.sandbox.groovy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Compiles all configured {@link SecureGroovyScript}s in parallel, so that builds after a restart need not wait for compilation.
+ * Scripts are registered by {@link SecureGroovyScript#configuring}, which also happens when they are loaded from disk.
+ * Each compiled class is held by its script until first evaluated, regardless of the size limit of the usual compiled script cache,
+ * which costs memory for scripts which are rarely run.
+ * Scripts with a classpath benefit only if first evaluated before their shared class loader is closed as idle.
+ * This only helps callers which evaluate with {@link hudson.PluginManager#uberClassLoader}, as most do.
+ * Only one warm-up runs at a time.
+ */
+public final class ScriptWarmUp {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptWarmUp.class.getName());
+
+    private static @CheckForNull ScriptWarmUp latest;
+
+    /**
+     * Starts compiling all configured scripts, unless that is already in progress.
+     * @return the warm-up in progress
+     */
+    public static synchronized @Nonnull ScriptWarmUp start() {
+        if (latest == null || latest.isDone()) {
+            latest = new ScriptWarmUp(SecureGroovyScript.configured());
+            latest.run();
+        }
+        return latest;
+    }
+
+    /** @return the warm-up in progress, or the last one to have run, if any */
+    public static synchronized @CheckForNull ScriptWarmUp getLatest() {
+        return latest;
+    }
+
+    /** A script which could not be compiled. */
+    public static final class Failure {
+
+        private final String script;
+        private final String message;
+
+        Failure(String script, String message) {
+            this.script = script;
+            this.message = message;
+        }
+
+        public @Nonnull String getScript() {
+            return script;
+        }
+
+        public @Nonnull String getMessage() {
+            return message;
+        }
+
+    }
+
+    private final List<SecureGroovyScript> scripts;
+    private final AtomicInteger compiled = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+    private final AtomicLong compileNanos = new AtomicLong();
+    private final long start = System.nanoTime();
+    private volatile long end;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private ScriptWarmUp(List<SecureGroovyScript> scripts) {
+        this.scripts = scripts;
+    }
+
+    private void run() {
+        final ForkJoinPool pool = new ForkJoinPool();
+        pool.execute(new RecursiveAction() {
+            @Override protected void compute() {
+                try {
+                    new Compile(0, scripts.size()).invoke();
+                } finally {
+                    end = System.nanoTime();
+                    done.countDown();
+                    pool.shutdown();
+                    LOGGER.log(Level.INFO, "Compiled {0} scripts in {1}ms; {2} skipped, {3} failed", new Object[] {compiled, getElapsedMillis(), skipped, failures.size()});
+                }
+            }
+        });
+    }
+
+    /** Compiles a range of {@link #scripts}, splitting it among workers. */
+    private final class Compile extends RecursiveAction {
+
+        private final int from, to;
+
+        Compile(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) / 2;
+                invokeAll(new Compile(from, middle), new Compile(middle, to));
+            } else if (to > from) {
+                compile(scripts.get(from));
+            }
+        }
+
+    }
+
+    private void compile(SecureGroovyScript script) {
+        long t = System.nanoTime();
+        try {
+            if (script.precompileNow()) {
+                compiled.incrementAndGet();
+            } else {
+                skipped.incrementAndGet();
+            }
+        } catch (Exception x) { // typically CompilationFailedException
+            failures.add(new Failure(script.getScript(), String.valueOf(x.getMessage())));
+        } catch (LinkageError x) {
+            failures.add(new Failure(script.getScript(), x.toString()));
+        } finally {
+            compileNanos.addAndGet(System.nanoTime() - t);
+        }
+    }
+
+    /** Number of scripts to be compiled. */
+    public int getTotal() {
+        return scripts.size();
+    }
+
+    /** Number of scripts compiled so far (or found already compiled). */
+    public int getCompiled() {
+        return compiled.get();
+    }
+
+    /** Number of scripts skipped so far for lack of approval. */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public @Nonnull List<Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<Failure>(failures);
+        }
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /** Waits for all scripts to be processed. */
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    /** Wall-clock time taken so far. */
+    public long getElapsedMillis() {
+        return ((isDone() ? end : System.nanoTime()) - start) / 1000000;
+    }
+
+    /** Time taken so far summed over all scripts, which exceeds {@link #getElapsedMillis} by the effective parallelism. */
+    public long getCompileMillis() {
+        return compileNanos.get() / 1000000;
+    }
+
+}
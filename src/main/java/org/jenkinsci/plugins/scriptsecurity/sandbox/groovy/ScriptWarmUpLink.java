@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.scriptsecurity.sandbox.groovy;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import javax.annotation.CheckForNull;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/** Lets an administrator run a {@link ScriptWarmUp} and see its results. */
+@Restricted(NoExternalUse.class) // implementation
+@Extension public final class ScriptWarmUpLink extends ManagementLink {
+
+    @Override public String getIconFileName() {
+        return "gear2.png";
+    }
+
+    @Override public String getUrlName() {
+        return "scriptWarmUp";
+    }
+
+    @Override public String getDisplayName() {
+        return "Precompile Scripts";
+    }
+
+    @Override public String getDescription() {
+        return "Compiles all configured Groovy scripts ahead of their first use, for example after a restart.";
+    }
+
+    @Override public Permission getRequiredPermission() {
+        return Jenkins.ADMINISTER;
+    }
+
+    public @CheckForNull ScriptWarmUp getLatest() {
+        return ScriptWarmUp.getLatest();
+    }
+
+    @RequirePOST public HttpResponse doStart() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        ScriptWarmUp.start();
+        return HttpResponses.redirectToDot();
+    }
+
+}
@@ -24,24 +24,51 @@
 
 package org.jenkinsci.plugins.scriptsecurity.sandbox.groovy;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
 import groovy.lang.GroovyShell;
+import groovy.lang.Script;
 import hudson.Extension;
 import hudson.PluginManager;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.Item;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
 import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.RejectedAccessException;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
 import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
@@ -63,6 +90,8 @@ import org.kohsuke.stapler.StaplerRequest;
  */
 public final class SecureGroovyScript extends AbstractDescribableImpl<SecureGroovyScript> {
  
+    private static final Logger LOGGER = Logger.getLogger(SecureGroovyScript.class.getName());
+
     private final @Nonnull String script;
     private final boolean sandbox;
     private final @CheckForNull List<ClasspathEntry> classpath;
@@ -105,8 +134,10 @@ public final class SecureGroovyScript extends AbstractDescribableImpl<SecureGroo
         if (!sandbox) {
             ScriptApproval.get().configuring(script, GroovyLanguage.get(), context);
         }
-        for (ClasspathEntry entry : getClasspath()) {
-            ScriptApproval.get().configuring(entry, context);
+        ScriptApproval.get().configuring(getClasspath(), context);
+        configured.add(this);
+        if (PRECOMPILE) {
+            precompile();
         }
         return this;
     }
@@ -140,40 +171,277 @@ public final class SecureGroovyScript extends AbstractDescribableImpl<SecureGroo
      * @throws UnapprovedUsageException in case of a non-sandbox issue
      * @throws UnapprovedClasspathException in case some unapproved classpath entries were requested
      */
-    @SuppressFBWarnings(value = "DP_CREATE_CLASSLOADER_INSIDE_DO_PRIVILEGED", justification = "Managed by GroovyShell.")
     public Object evaluate(ClassLoader loader, Binding binding) throws Exception {
         if (!calledConfiguring) {
             throw new IllegalStateException("you need to call configuring or a related method before using GroovyScript");
         }
-        URLClassLoader urlcl = null;
+        ClassLoaderPool.Lease lease = null;
         List<ClasspathEntry> cp = getClasspath();
+        List<String> hashes = Collections.emptyList();
         if (!cp.isEmpty()) {
+            hashes = ScriptApproval.get().usingClasspath(cp);
             List<URL> urlList = new ArrayList<URL>(cp.size());
-            
             for (ClasspathEntry entry : cp) {
-                ScriptApproval.get().using(entry);
                 urlList.add(entry.getURL());
             }
-            
-            loader = urlcl = new URLClassLoader(urlList.toArray(new URL[urlList.size()]), loader);
+            lease = classLoaders.acquire(loader, urlList, hashes);
+            loader = lease.getLoader();
         }
         try {
-            loader = GroovySandbox.createSecureClassLoader(loader);
             if (sandbox) {
-                GroovyShell shell = new GroovyShell(loader, binding, GroovySandbox.createSecureCompilerConfiguration());
                 try {
-                    return GroovySandbox.run(shell.parse(script), Whitelist.all());
+                    return GroovySandbox.run(parse(loader, hashes, binding), Whitelist.all());
                 } catch (RejectedAccessException x) {
                     throw ScriptApproval.get().accessRejected(x, ApprovalContext.create());
                 }
             } else {
-                return new GroovyShell(loader, binding).evaluate(ScriptApproval.get().using(script, GroovyLanguage.get()));
+                ScriptApproval.get().using(script, GroovyLanguage.get());
+                return parse(loader, hashes, binding).run();
             }
         } finally {
-            if (urlcl != null) {
-                urlcl.close();
+            if (lease != null) {
+                classLoaders.release(lease);
+            }
+        }
+    }
+
+    /**
+     * Compiles the script, or instantiates a previously compiled class.
+     * @param loader the class loader passed to {@link #evaluate}, or one from {@link #classLoaders}
+     * @param classpathHashes the approved hashes of {@link #getClasspath}
+     */
+    private Script parse(ClassLoader loader, List<String> classpathHashes, Binding binding) {
+        return InvokerHelper.createScript(compile(loader, classpathHashes), binding);
+    }
+
+    /**
+     * Compiles the script if it has not been already.
+     * Does not instantiate or initialize the class, which could run code from the script.
+     */
+    private Class<?> compile(ClassLoader loader, List<String> classpathHashes) {
+        CompiledScriptKey key = new CompiledScriptKey(script, sandbox, loader);
+        Class<?> scriptClass = compiledScripts.getIfPresent(key);
+        if (scriptClass == null) {
+            Warmed w = takeWarmed(loader);
+            if (w != null) {
+                scriptClass = w.scriptClass;
+                compiledScripts.put(key, scriptClass);
+            } else {
+                scriptClass = compileUncached(loader, classpathHashes);
+                compiledScripts.put(key, scriptClass);
+            }
+        }
+        return scriptClass;
+    }
+
+    /** Compiles the script, or loads it from {@link BytecodeCache}, without consulting any in-memory cache. */
+    @SuppressFBWarnings(value = "DP_CREATE_CLASSLOADER_INSIDE_DO_PRIVILEGED", justification = "Owned by the returned script class, as in GroovyShell.parse; nothing to close.")
+    private Class<?> compileUncached(ClassLoader loader, List<String> classpathHashes) {
+        BytecodeCache bytecodeCache = BytecodeCache.get();
+        if (bytecodeCache != null) {
+            Class<?> scriptClass = bytecodeCache.load(script, sandbox, loader, classpathHashes);
+            if (scriptClass != null) {
+                return scriptClass;
             }
         }
+        ClassLoader secureLoader = GroovySandbox.createSecureClassLoader(loader);
+        // as in GroovyShell.parse
+        GroovyClassLoader gcl = new GroovyClassLoader(secureLoader, sandbox ? GroovySandbox.createSecureCompilerConfiguration() : CompilerConfiguration.DEFAULT);
+        return gcl.parseClass(script, "Script1.groovy");
+    }
+
+    /**
+     * A class compiled by {@link #precompileNow} but not yet evaluated.
+     * Kept on this object rather than in {@link #compiledScripts}, whose size limit and expiry would otherwise discard most of a large warm-up,
+     * and so collected together with the script if it is never run.
+     * Holds no lease on a loader from {@link #classLoaders}; if that is closed before the first evaluation, the class is forgotten.
+     */
+    private static final class Warmed {
+
+        final ClassLoader loader;
+        final Class<?> scriptClass;
+
+        Warmed(ClassLoader loader, Class<?> scriptClass) {
+            this.loader = loader;
+            this.scriptClass = scriptClass;
+        }
+
+    }
+
+    private transient @CheckForNull Warmed warmed;
+
+    private synchronized @CheckForNull Warmed takeWarmed(ClassLoader loader) {
+        Warmed w = warmed;
+        if (w != null && w.loader == loader) {
+            warmed = null;
+            return w;
+        }
+        return null;
+    }
+
+    private synchronized void putWarmed(Warmed w) {
+        if (warmed == null || warmed.loader != w.loader) {
+            warmed = w;
+        }
+    }
+
+    /** Called when a loader from {@link #classLoaders} is closed. */
+    private synchronized void forgetWarmed(ClassLoader loader) {
+        if (warmed != null && warmed.loader == loader) {
+            warmed = null;
+        }
+    }
+
+    // Only for testing
+    synchronized @CheckForNull ClassLoader warmedLoader() {
+        return warmed != null ? warmed.loader : null;
+    }
+
+    /** Whether {@link #evaluate} with this loader would find the script already compiled. */
+    boolean isCompiled(ClassLoader loader) {
+        synchronized (this) {
+            if (warmed != null && warmed.loader == loader) {
+                return true;
+            }
+        }
+        return compiledScripts.getIfPresent(new CompiledScriptKey(script, sandbox, loader)) != null;
+    }
+
+    /**
+     * Whether {@link #configuring} should start compiling scripts in the background, so that the first {@link #evaluate} is faster.
+     * As this includes every job loaded at startup, and each class is kept until first evaluated, it costs memory for rarely run jobs.
+     */
+    static boolean PRECOMPILE = Boolean.getBoolean(SecureGroovyScript.class.getName() + ".PRECOMPILE");
+
+    /**
+     * Compiles the script in the background, as {@link #evaluate} would with {@link PluginManager#uberClassLoader}.
+     * Scripts which could not be evaluated yet for lack of approval are skipped.
+     */
+    private void precompile() {
+        precompiler.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    precompileNow();
+                } catch (Exception x) { // typically CompilationFailedException
+                    LOGGER.log(Level.FINE, "could not precompile script", x);
+                } catch (LinkageError x) {
+                    LOGGER.log(Level.FINE, "could not precompile script", x);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compiles the script as {@link #evaluate} would with {@link PluginManager#uberClassLoader}.
+     * The class is kept until the script is first evaluated, or until the pooled class loader for its classpath, if any, is closed.
+     * @return false if it was skipped since it, or its classpath, is not yet approved
+     * @throws Exception if it could not be compiled
+     */
+    boolean precompileNow() throws Exception {
+        Jenkins j = Jenkins.getInstance();
+        if (j == null) {
+            return false;
+        }
+        ClassLoader loader = j.getPluginManager().uberClassLoader;
+        try {
+            if (!sandbox) {
+                ScriptApproval.get().using(script, GroovyLanguage.get());
+            }
+            List<ClasspathEntry> cp = getClasspath();
+            List<String> hashes = Collections.emptyList();
+            ClassLoaderPool.Lease lease = null;
+            if (!cp.isEmpty()) {
+                List<URL> urlList = new ArrayList<URL>(cp.size());
+                for (ClasspathEntry entry : cp) {
+                    urlList.add(entry.getURL());
+                }
+                hashes = ScriptApproval.get().usingClasspath(cp);
+                lease = classLoaders.acquire(loader, urlList, hashes);
+                loader = lease.getLoader();
+            }
+            try {
+                if (!isCompiled(loader)) {
+                    putWarmed(new Warmed(loader, compileUncached(loader, hashes)));
+                }
+            } finally {
+                if (lease != null) {
+                    classLoaders.release(lease);
+                }
+            }
+            return true;
+        } catch (UnapprovedUsageException x) {
+            return false;
+        } catch (UnapprovedClasspathException x) {
+            return false;
+        }
+    }
+
+    /** Scripts on which {@link #configuring} has been called, and which are still in use. */
+    private static final Set<SecureGroovyScript> configured = Collections.newSetFromMap(new MapMaker().weakKeys().<SecureGroovyScript,Boolean>makeMap());
+
+    /** @return a snapshot of scripts which have been configured */
+    static @Nonnull List<SecureGroovyScript> configured() {
+        return new ArrayList<SecureGroovyScript>(configured);
+    }
+
+    /** Runs {@link #precompile} tasks; threads exit when idle, and tasks beyond the queue limit are dropped. */
+    private static final ThreadPoolExecutor precompiler;
+    static {
+        int threads = Math.min(2, Runtime.getRuntime().availableProcessors());
+        precompiler = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1000),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SecureGroovyScript.precompile"), new ThreadPoolExecutor.DiscardPolicy());
+        precompiler.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Script classes compiled by {@link #evaluate}, so that repeated evaluations need only instantiate them.
+     * Note that static state, such as that of classes defined in a script, is thus shared among evaluations.
+     * Evicted classes, together with their class loaders, may be collected once no longer running.
+     */
+    private static final Cache<CompiledScriptKey,Class<?>> compiledScripts = CacheBuilder.newBuilder().
+            maximumSize(Integer.getInteger(SecureGroovyScript.class.getName() + ".compiledScriptCacheSize", 500)).
+            expireAfterAccess(15, TimeUnit.MINUTES).
+            build();
+
+    /** Loaders for {@link #getClasspath}, shared among evaluations; scripts compiled against one are forgotten when it is closed. */
+    static final ClassLoaderPool classLoaders = new ClassLoaderPool() {
+        @Override protected void closing(URLClassLoader loader) {
+            Iterator<CompiledScriptKey> it = compiledScripts.asMap().keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().loader == loader) {
+                    it.remove();
+                }
+            }
+            for (SecureGroovyScript s : configured()) {
+                s.forgetWarmed(loader);
+            }
+        }
+    };
+
+    private static final class CompiledScriptKey {
+
+        private final String script;
+        private final boolean sandbox;
+        private final ClassLoader loader;
+
+        CompiledScriptKey(String script, boolean sandbox, ClassLoader loader) {
+            this.script = script;
+            this.sandbox = sandbox;
+            this.loader = loader;
+        }
+
+        @Override public boolean equals(Object obj) {
+            if (!(obj instanceof CompiledScriptKey)) {
+                return false;
+            }
+            CompiledScriptKey o = (CompiledScriptKey) obj;
+            return loader == o.loader && sandbox == o.sandbox && script.equals(o.script);
+        }
+
+        @Override public int hashCode() {
+            return (script.hashCode() * 31 + System.identityHashCode(loader)) * 2 + (sandbox ? 1 : 0);
+        }
+
     }
 
     @Extension public static final class DescriptorImpl extends Descriptor<SecureGroovyScript> {
@@ -182,15 +450,61 @@ public final class SecureGroovyScript extends AbstractDescribableImpl<SecureGroo
             return ""; // not intended to be displayed on its own
         }
 
-        public FormValidation doCheckScript(@QueryParameter String value, @QueryParameter boolean sandbox) {
+        public FormValidation doCheckScript(@QueryParameter final String value, @QueryParameter boolean sandbox) {
+            Optional<String> error;
             try {
-                new GroovyShell(Jenkins.getInstance().getPluginManager().uberClassLoader).parse(value);
-            } catch (CompilationFailedException x) {
-                return FormValidation.error(x.getLocalizedMessage());
+                error = checkedScripts.get(digest(value), new Callable<Optional<String>>() {
+                    @Override public Optional<String> call() {
+                        return check(value);
+                    }
+                });
+            } catch (ExecutionException x) {
+                throw Throwables.propagate(x.getCause());
+            } catch (UncheckedExecutionException x) {
+                throw Throwables.propagate(x.getCause());
+            }
+            if (error.isPresent()) {
+                return FormValidation.error(error.get());
             }
             return sandbox ? FormValidation.ok() : ScriptApproval.get().checking(value, GroovyLanguage.get());
         }
 
+        /**
+         * Results of {@link #check} by {@link #digest} of the script.
+         * Concurrent requests to check the same script wait for one result.
+         * Entries expire so that newly installed plugins are considered.
+         */
+        private static final Cache<String,Optional<String>> checkedScripts = CacheBuilder.newBuilder().
+                maximumSize(200).
+                expireAfterWrite(15, TimeUnit.MINUTES).
+                build();
+
+        private static final CompilerConfiguration CHECK_CONFIGURATION = new CompilerConfiguration();
+
+        /**
+         * Compiles a script only so far as resolving the classes it refers to, so no classes are defined.
+         * @return an error message, if any
+         */
+        @SuppressFBWarnings(value = "DP_CREATE_CLASSLOADER_INSIDE_DO_PRIVILEGED", justification = "Only used to resolve classes during validation; no classes are defined in it.")
+        private static Optional<String> check(String script) {
+            CompilationUnit unit = new CompilationUnit(CHECK_CONFIGURATION, null, new GroovyClassLoader(Jenkins.getInstance().getPluginManager().uberClassLoader, CHECK_CONFIGURATION));
+            unit.addSource("Script1.groovy", script);
+            try {
+                unit.compile(Phases.CANONICALIZATION);
+            } catch (CompilationFailedException x) {
+                return Optional.of(x.getLocalizedMessage());
+            }
+            return Optional.absent();
+        }
+
+        private static String digest(String script) {
+            try {
+                return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException x) {
+                throw new AssertionError(x);
+            }
+        }
+
     }
 
 }
@@ -28,91 +28,188 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import org.apache.commons.lang.ClassUtils;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * A whitelist based on listing signatures and searching them.
+ * <p>The signature lists are read once, upon the first {@code permits*} call, into lookup tables which are never rebuilt,
+ * so they must not change after that point. (An enclosing {@link ProxyWhitelist} likewise copies them only when it is created or reset.)
+ * A whitelist whose signatures change should instead extend {@link Whitelist} directly with its own lookup structures,
+ * as {@link MutableWhitelist} does, or be replaced by a new instance passed to {@link ProxyWhitelist#reset(java.util.Collection)}.
  */
 public abstract class EnumeratingWhitelist extends Whitelist {
 
+    /** @return method signatures; must not change once this whitelist has been consulted */
     protected abstract List<MethodSignature> methodSignatures();
 
+    /** @return constructor signatures; must not change once this whitelist has been consulted */
     protected abstract List<NewSignature> newSignatures();
 
+    /** @return static method signatures; must not change once this whitelist has been consulted */
     protected abstract List<MethodSignature> staticMethodSignatures();
 
+    /** @return field signatures; must not change once this whitelist has been consulted */
     protected abstract List<FieldSignature> fieldSignatures();
 
+    /** @return static field signatures; must not change once this whitelist has been consulted */
     protected abstract List<FieldSignature> staticFieldSignatures();
 
-    // TODO should precompute hash sets of signatures, assuming we document that the signatures may not change over the lifetime of the whitelist (or pass them in the constructor)
+    /** Lookup tables built from the signature lists upon first use; see the class documentation. */
+    private volatile Index index;
 
-    @Override public final boolean permitsMethod(Method method, Object receiver, Object[] args) {
-        for (MethodSignature s : methodSignatures()) {
-            if (s.matches(method)) {
-                return true;
-            }
+    private Index index() {
+        Index i = index;
+        if (i == null) {
+            // Benign race: concurrent callers may each build an equivalent index.
+            index = i = new Index(this);
         }
-        return false;
+        return i;
+    }
+
+    @Override public final boolean permitsMethod(Method method, Object receiver, Object[] args) {
+        return permits(index().methods, method);
     }
 
     @Override public final boolean permitsConstructor(Constructor<?> constructor, Object[] args) {
-        for (NewSignature s : newSignatures()) {
-            if (s.matches(constructor)) {
-                return true;
+        List<NewSignature> candidates = index().constructors.get(getName(constructor.getDeclaringClass()));
+        if (candidates != null) {
+            Class<?>[] parameterTypes = constructor.getParameterTypes();
+            for (NewSignature s : candidates) {
+                if (argumentTypesMatch(s.argumentTypes, parameterTypes)) {
+                    return true;
+                }
             }
         }
         return false;
     }
 
     @Override public final boolean permitsStaticMethod(Method method, Object[] args) {
-        for (MethodSignature s : staticMethodSignatures()) {
-            if (s.matches(method)) {
-                return true;
-            }
-        }
-        return false;
+        return permits(index().staticMethods, method);
     }
 
     @Override public final boolean permitsFieldGet(Field field, Object receiver) {
-        for (FieldSignature s : fieldSignatures()) {
-            if (s.matches(field)) {
-                return true;
-            }
-        }
-        return false;
+        return permits(index().fields, field);
     }
 
     @Override public final boolean permitsFieldSet(Field field, Object receiver, Object value) {
-        for (FieldSignature s : fieldSignatures()) {
-            if (s.matches(field)) {
-                return true;
+        return permits(index().fields, field);
+    }
+
+    @Override public final boolean permitsStaticFieldGet(Field field) {
+        return permits(index().staticFields, field);
+    }
+
+    @Override public final boolean permitsStaticFieldSet(Field field, Object value) {
+        return permits(index().staticFields, field);
+    }
+
+    private static boolean permits(MemberIndex<MethodSignature> index, Method method) {
+        String type = getName(method.getDeclaringClass());
+        List<MethodSignature> exact = index.exact(type, method.getName());
+        List<MethodSignature> wildcard = index.wildcard(type);
+        if (exact == null && wildcard == null) {
+            return false;
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        return anyArgumentTypesMatch(exact, parameterTypes) || anyArgumentTypesMatch(wildcard, parameterTypes);
+    }
+
+    private static boolean anyArgumentTypesMatch(@CheckForNull List<MethodSignature> candidates, Class<?>[] parameterTypes) {
+        if (candidates != null) {
+            for (MethodSignature s : candidates) {
+                if (argumentTypesMatch(s.argumentTypes, parameterTypes)) {
+                    return true;
+                }
             }
         }
         return false;
     }
 
-    @Override public final boolean permitsStaticFieldGet(Field field) {
-        for (FieldSignature s : staticFieldSignatures()) {
-            if (s.matches(field)) {
-                return true;
+    private static boolean permits(MemberIndex<FieldSignature> index, Field field) {
+        String type = getName(field.getDeclaringClass());
+        return index.exact(type, field.getName()) != null || index.wildcard(type) != null;
+    }
+
+    /**
+     * Immutable view of the signature lists, hashed by declaring type and then member name.
+     * Signatures with a {@code *} member name go into a separate per-type bucket.
+     */
+    private static final class Index {
+
+        final MemberIndex<MethodSignature> methods = new MemberIndex<MethodSignature>();
+        final MemberIndex<MethodSignature> staticMethods = new MemberIndex<MethodSignature>();
+        final Map<String,List<NewSignature>> constructors = new HashMap<String,List<NewSignature>>();
+        final MemberIndex<FieldSignature> fields = new MemberIndex<FieldSignature>();
+        final MemberIndex<FieldSignature> staticFields = new MemberIndex<FieldSignature>();
+
+        Index(EnumeratingWhitelist whitelist) {
+            for (MethodSignature s : whitelist.methodSignatures()) {
+                methods.add(s.receiverType, s.method, s);
+            }
+            for (MethodSignature s : whitelist.staticMethodSignatures()) {
+                staticMethods.add(s.receiverType, s.method, s);
+            }
+            for (NewSignature s : whitelist.newSignatures()) {
+                bucket(constructors, s.type).add(s);
+            }
+            for (FieldSignature s : whitelist.fieldSignatures()) {
+                fields.add(s.type, s.field, s);
+            }
+            for (FieldSignature s : whitelist.staticFieldSignatures()) {
+                staticFields.add(s.type, s.field, s);
             }
         }
-        return false;
+
     }
 
-    @Override public final boolean permitsStaticFieldSet(Field field, Object value) {
-        for (FieldSignature s : staticFieldSignatures()) {
-            if (s.matches(field)) {
-                return true;
+    private static final class MemberIndex<S extends Signature> {
+
+        private final Map<String,Map<String,List<S>>> members = new HashMap<String,Map<String,List<S>>>();
+        private final Map<String,List<S>> wildcards = new HashMap<String,List<S>>();
+
+        void add(String type, String member, S s) {
+            if (member.equals("*")) {
+                bucket(wildcards, type).add(s);
+            } else {
+                Map<String,List<S>> byName = members.get(type);
+                if (byName == null) {
+                    byName = new HashMap<String,List<S>>();
+                    members.put(type, byName);
+                }
+                bucket(byName, member).add(s);
             }
         }
-        return false;
+
+        @CheckForNull List<S> exact(String type, String member) {
+            Map<String,List<S>> byName = members.get(type);
+            return byName != null ? byName.get(member) : null;
+        }
+
+        @CheckForNull List<S> wildcard(String type) {
+            return wildcards.get(type);
+        }
+
+    }
+
+    private static <S> List<S> bucket(Map<String,List<S>> map, String key) {
+        List<S> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<S>(1);
+            map.put(key, list);
+        }
+        return list;
     }
 
     public static @Nonnull String getName(@Nonnull Class<?> c) {
@@ -128,6 +225,30 @@ public abstract class EnumeratingWhitelist extends Whitelist {
         return o == null ? "null" : getName(o.getClass());
     }
 
+    /**
+     * Lists a type together with all its supertypes, each only once, with supertypes first.
+     * @return a shared array which must not be modified
+     */
+    @Restricted(NoExternalUse.class) // GroovyCallSiteSelector
+    public static @Nonnull Class<?>[] supertypes(@Nonnull Class<?> c) {
+        return SUPERTYPES.get(c);
+    }
+
+    private static final ClassValue<Class<?>[]> SUPERTYPES = new ClassValue<Class<?>[]>() {
+        @Override protected Class<?>[] computeValue(Class<?> type) {
+            Set<Class<?>> types = new LinkedHashSet<Class<?>>();
+            Class<?> s = type.getSuperclass();
+            if (s != null) {
+                types.addAll(Arrays.asList(SUPERTYPES.get(s)));
+            }
+            for (Class<?> i : type.getInterfaces()) {
+                types.addAll(Arrays.asList(SUPERTYPES.get(i)));
+            }
+            types.add(type);
+            return types.toArray(new Class<?>[types.size()]);
+        }
+    };
+
     private static String[] argumentTypes(Class<?>[] argumentTypes) {
         String[] s = new String[argumentTypes.length];
         for (int i = 0; i < argumentTypes.length; i++) {
@@ -136,6 +257,19 @@ public abstract class EnumeratingWhitelist extends Whitelist {
         return s;
     }
 
+    /** Like comparing against {@link #argumentTypes(Class[])} but without allocating the array. */
+    private static boolean argumentTypesMatch(String[] argumentTypes, Class<?>[] parameterTypes) {
+        if (argumentTypes.length != parameterTypes.length) {
+            return false;
+        }
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (!getName(parameterTypes[i]).equals(argumentTypes[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static boolean is(String thisIdentifier, String identifier) {
         return thisIdentifier.equals("*") || identifier.equals(thisIdentifier);
     }
@@ -185,7 +319,7 @@ public abstract class EnumeratingWhitelist extends Whitelist {
             this(getName(receiverType), method, argumentTypes(argumentTypes));
         }
         boolean matches(Method m) {
-            return is(method, m.getName()) && getName(m.getDeclaringClass()).equals(receiverType) && Arrays.equals(argumentTypes(m.getParameterTypes()), argumentTypes);
+            return is(method, m.getName()) && getName(m.getDeclaringClass()).equals(receiverType) && argumentTypesMatch(argumentTypes, m.getParameterTypes());
         }
         @Override public String toString() {
             return "method " + signaturePart();
@@ -194,25 +328,19 @@ public abstract class EnumeratingWhitelist extends Whitelist {
             return joinWithSpaces(new StringBuilder(receiverType).append(' ').append(method), argumentTypes).toString();
         }
         @Override boolean exists() throws Exception {
-            return exists(type(receiverType), true);
-        }
-        // Cf. GroovyCallSiteSelector.visitTypes.
-        @SuppressWarnings("InfiniteRecursion")
-        private boolean exists(Class<?> c, boolean start) throws Exception {
-            Class<?> s = c.getSuperclass();
-            if (s != null && exists(s, false)) {
-                return !start;
-            }
-            for (Class<?> i : c.getInterfaces()) {
-                if (exists(i, false)) {
-                    return !start;
+            Class<?> c = type(receiverType);
+            Class<?>[] argumentTypes = types(this.argumentTypes);
+            for (Class<?> t : supertypes(c)) {
+                try {
+                    if (!Modifier.isStatic(t.getDeclaredMethod(method, argumentTypes).getModifiers())) {
+                        // Declared in a supertype, which the signature should name instead.
+                        return t == c;
+                    }
+                } catch (NoSuchMethodException x) {
+                    // keep looking
                 }
             }
-            try {
-                return !Modifier.isStatic(c.getDeclaredMethod(method, types(argumentTypes)).getModifiers());
-            } catch (NoSuchMethodException x) {
-                return false;
-            }
+            return false;
         }
     }
 
@@ -233,8 +361,8 @@ public abstract class EnumeratingWhitelist extends Whitelist {
     }
 
     public static final class NewSignature extends Signature  {
-        private final String type;
-        private final String[] argumentTypes;
+        final String type;
+        final String[] argumentTypes;
         public NewSignature(String type, String[] argumentTypes) {
             this.type = type;
             this.argumentTypes = argumentTypes.clone();
@@ -243,7 +371,7 @@ public abstract class EnumeratingWhitelist extends Whitelist {
             this(getName(type), argumentTypes(argumentTypes));
         }
         boolean matches(Constructor c) {
-            return getName(c.getDeclaringClass()).equals(type) && Arrays.equals(argumentTypes(c.getParameterTypes()), argumentTypes);
+            return getName(c.getDeclaringClass()).equals(type) && argumentTypesMatch(argumentTypes, c.getParameterTypes());
         }
         @Override String signaturePart() {
             return joinWithSpaces(new StringBuilder(type), argumentTypes).toString();
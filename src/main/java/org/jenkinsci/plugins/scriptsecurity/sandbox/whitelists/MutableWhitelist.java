@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.EnumeratingWhitelist.FieldSignature;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.EnumeratingWhitelist.MethodSignature;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.EnumeratingWhitelist.NewSignature;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.EnumeratingWhitelist.Signature;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.EnumeratingWhitelist.StaticFieldSignature;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.EnumeratingWhitelist.StaticMethodSignature;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Whitelist of signatures in {@link StaticWhitelist} format which may be added or removed one at a time.
+ * Since this is not an {@link EnumeratingWhitelist}, an enclosing {@link ProxyWhitelist} consults it directly
+ * rather than merging its signatures, so changes need no {@link ProxyWhitelist#reset}.
+ * Lookups do not lock.
+ */
+@Restricted(NoExternalUse.class) // ScriptApproval
+public final class MutableWhitelist extends Whitelist {
+
+    /**
+     * Signatures of each kind by declaring type.
+     * Buckets are replaced rather than modified, and the whole is replaced by {@link #replaceAll}.
+     */
+    private static final class Index {
+        final ConcurrentMap<String,MethodSignature[]> methods = new ConcurrentHashMap<String,MethodSignature[]>();
+        final ConcurrentMap<String,MethodSignature[]> staticMethods = new ConcurrentHashMap<String,MethodSignature[]>();
+        final ConcurrentMap<String,NewSignature[]> constructors = new ConcurrentHashMap<String,NewSignature[]>();
+        final ConcurrentMap<String,FieldSignature[]> fields = new ConcurrentHashMap<String,FieldSignature[]>();
+        final ConcurrentMap<String,FieldSignature[]> staticFields = new ConcurrentHashMap<String,FieldSignature[]>();
+        boolean add(Signature s) {
+            if (s instanceof StaticMethodSignature) {
+                return add(staticMethods, ((StaticMethodSignature) s).receiverType, (MethodSignature) s, new MethodSignature[1]);
+            } else if (s instanceof MethodSignature) {
+                return add(methods, ((MethodSignature) s).receiverType, (MethodSignature) s, new MethodSignature[1]);
+            } else if (s instanceof StaticFieldSignature) {
+                return add(staticFields, ((FieldSignature) s).type, (FieldSignature) s, new FieldSignature[1]);
+            } else if (s instanceof FieldSignature) {
+                return add(fields, ((FieldSignature) s).type, (FieldSignature) s, new FieldSignature[1]);
+            } else {
+                return add(constructors, ((NewSignature) s).type, (NewSignature) s, new NewSignature[1]);
+            }
+        }
+        boolean remove(Signature s) {
+            if (s instanceof StaticMethodSignature) {
+                return remove(staticMethods, ((StaticMethodSignature) s).receiverType, (MethodSignature) s);
+            } else if (s instanceof MethodSignature) {
+                return remove(methods, ((MethodSignature) s).receiverType, (MethodSignature) s);
+            } else if (s instanceof StaticFieldSignature) {
+                return remove(staticFields, ((FieldSignature) s).type, (FieldSignature) s);
+            } else if (s instanceof FieldSignature) {
+                return remove(fields, ((FieldSignature) s).type, (FieldSignature) s);
+            } else {
+                return remove(constructors, ((NewSignature) s).type, (NewSignature) s);
+            }
+        }
+        /** @param single an array of length one to use for the first signature of a type */
+        private static <S extends Signature> boolean add(ConcurrentMap<String,S[]> map, String type, S s, S[] single) {
+            S[] bucket = map.get(type);
+            if (bucket == null) {
+                single[0] = s;
+                map.put(type, single);
+                return true;
+            }
+            if (Arrays.asList(bucket).contains(s)) {
+                return false;
+            }
+            S[] grown = Arrays.copyOf(bucket, bucket.length + 1);
+            grown[bucket.length] = s;
+            map.put(type, grown);
+            return true;
+        }
+        private static <S extends Signature> boolean remove(ConcurrentMap<String,S[]> map, String type, S s) {
+            S[] bucket = map.get(type);
+            if (bucket == null) {
+                return false;
+            }
+            int i = Arrays.asList(bucket).indexOf(s);
+            if (i == -1) {
+                return false;
+            }
+            if (bucket.length == 1) {
+                map.remove(type);
+            } else {
+                S[] shrunk = Arrays.copyOf(bucket, bucket.length - 1);
+                System.arraycopy(bucket, i + 1, shrunk, i, bucket.length - i - 1);
+                map.put(type, shrunk);
+            }
+            return true;
+        }
+    }
+
+    private volatile Index index = new Index();
+
+    public MutableWhitelist() {}
+
+    public MutableWhitelist(Collection<? extends String> lines) throws IOException {
+        replaceAll(lines);
+    }
+
+    /**
+     * Adds a signature.
+     * @return false if it was already present
+     * @throws IOException if it is malformed
+     */
+    public synchronized boolean add(String line) throws IOException {
+        return index.add(StaticWhitelist.parse(line));
+    }
+
+    /**
+     * Removes a signature.
+     * @return false if it was not present
+     * @throws IOException if it is malformed
+     */
+    public synchronized boolean remove(String line) throws IOException {
+        return index.remove(StaticWhitelist.parse(line));
+    }
+
+    /**
+     * Replaces all signatures at once.
+     * @throws IOException if any is malformed, in which case nothing is changed
+     */
+    public synchronized void replaceAll(Collection<? extends String> lines) throws IOException {
+        Index replacement = new Index();
+        for (String line : lines) {
+            replacement.add(StaticWhitelist.parse(line));
+        }
+        index = replacement;
+    }
+
+    @Override public boolean permitsMethod(Method method, Object receiver, Object[] args) {
+        return permits(index.methods.get(EnumeratingWhitelist.getName(method.getDeclaringClass())), method);
+    }
+
+    @Override public boolean permitsConstructor(Constructor<?> constructor, Object[] args) {
+        NewSignature[] candidates = index.constructors.get(EnumeratingWhitelist.getName(constructor.getDeclaringClass()));
+        if (candidates != null) {
+            for (NewSignature s : candidates) {
+                if (s.matches(constructor)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override public boolean permitsStaticMethod(Method method, Object[] args) {
+        return permits(index.staticMethods.get(EnumeratingWhitelist.getName(method.getDeclaringClass())), method);
+    }
+
+    @Override public boolean permitsFieldGet(Field field, Object receiver) {
+        return permits(index.fields.get(EnumeratingWhitelist.getName(field.getDeclaringClass())), field);
+    }
+
+    @Override public boolean permitsFieldSet(Field field, Object receiver, Object value) {
+        return permits(index.fields.get(EnumeratingWhitelist.getName(field.getDeclaringClass())), field);
+    }
+
+    @Override public boolean permitsStaticFieldGet(Field field) {
+        return permits(index.staticFields.get(EnumeratingWhitelist.getName(field.getDeclaringClass())), field);
+    }
+
+    @Override public boolean permitsStaticFieldSet(Field field, Object value) {
+        return permits(index.staticFields.get(EnumeratingWhitelist.getName(field.getDeclaringClass())), field);
+    }
+
+    private static boolean permits(@CheckForNull MethodSignature[] candidates, Method method) {
+        if (candidates != null) {
+            for (MethodSignature s : candidates) {
+                if (s.matches(method)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean permits(@CheckForNull FieldSignature[] candidates, Field field) {
+        if (candidates != null) {
+            for (FieldSignature s : candidates) {
+                if (s.matches(field)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
@@ -32,9 +32,12 @@ import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Aggregates several whitelists.
@@ -42,78 +45,150 @@ import java.util.WeakHashMap;
 public class ProxyWhitelist extends Whitelist {
     
     private Collection<? extends Whitelist> originalDelegates;
-    private final List<Whitelist> delegates = new ArrayList<Whitelist>();
-    private final List<EnumeratingWhitelist.MethodSignature> methodSignatures = new ArrayList<EnumeratingWhitelist.MethodSignature>();
-    private final List<EnumeratingWhitelist.NewSignature> newSignatures = new ArrayList<EnumeratingWhitelist.NewSignature>();
-    private final List<EnumeratingWhitelist.MethodSignature> staticMethodSignatures = new ArrayList<EnumeratingWhitelist.MethodSignature>();
-    private final List<EnumeratingWhitelist.FieldSignature> fieldSignatures = new ArrayList<EnumeratingWhitelist.FieldSignature>();
-    private final List<EnumeratingWhitelist.FieldSignature> staticFieldSignatures = new ArrayList<EnumeratingWhitelist.FieldSignature>();
+    /** current state; replaced as a whole by {@link #reset} so that the {@code permits*} methods need not lock */
+    private volatile Snapshot snapshot;
+    /** serializes {@link #reset} calls */
+    private final Object resetLock = new Object();
     /** anything wrapping us, so that we can propagate {@link #reset} calls up the chain */
     private final Map<ProxyWhitelist,Void> wrappers = new WeakHashMap<ProxyWhitelist,Void>();
 
-    public ProxyWhitelist(Collection<? extends Whitelist> delegates) {
-        reset(delegates);
-    }
+    /**
+     * Immutable view of the delegates.
+     * Signatures of {@link EnumeratingWhitelist}s, including those inside nested {@link ProxyWhitelist}s,
+     * are merged into one list per kind and consulted first; other delegates are consulted in order.
+     */
+    private static final class Snapshot {
 
-    private void reset() {
-        reset(originalDelegates);
-    }
+        final List<EnumeratingWhitelist.MethodSignature> methodSignatures;
+        final List<EnumeratingWhitelist.NewSignature> newSignatures;
+        final List<EnumeratingWhitelist.MethodSignature> staticMethodSignatures;
+        final List<EnumeratingWhitelist.FieldSignature> fieldSignatures;
+        final List<EnumeratingWhitelist.FieldSignature> staticFieldSignatures;
+        final EnumeratingWhitelist signatures;
+        final Whitelist[] others;
+        final PermittedCache permitted = new PermittedCache();
 
-    public final void reset(Collection<? extends Whitelist> delegates) {
-        synchronized (this.delegates) {
-            originalDelegates = delegates;
-            this.delegates.clear();
-            methodSignatures.clear();
-            newSignatures.clear();
-            staticMethodSignatures.clear();
-            fieldSignatures.clear();
-            this.delegates.add(new EnumeratingWhitelist() {
+        Snapshot(List<EnumeratingWhitelist.MethodSignature> methodSignatures, List<EnumeratingWhitelist.NewSignature> newSignatures,
+                 List<EnumeratingWhitelist.MethodSignature> staticMethodSignatures, List<EnumeratingWhitelist.FieldSignature> fieldSignatures,
+                 List<EnumeratingWhitelist.FieldSignature> staticFieldSignatures, List<Whitelist> others) {
+            this.methodSignatures = Collections.unmodifiableList(methodSignatures);
+            this.newSignatures = Collections.unmodifiableList(newSignatures);
+            this.staticMethodSignatures = Collections.unmodifiableList(staticMethodSignatures);
+            this.fieldSignatures = Collections.unmodifiableList(fieldSignatures);
+            this.staticFieldSignatures = Collections.unmodifiableList(staticFieldSignatures);
+            this.signatures = new EnumeratingWhitelist() {
                 @Override protected List<EnumeratingWhitelist.MethodSignature> methodSignatures() {
-                    return methodSignatures;
+                    return Snapshot.this.methodSignatures;
                 }
                 @Override protected List<EnumeratingWhitelist.NewSignature> newSignatures() {
-                    return newSignatures;
+                    return Snapshot.this.newSignatures;
                 }
                 @Override protected List<EnumeratingWhitelist.MethodSignature> staticMethodSignatures() {
-                    return staticMethodSignatures;
+                    return Snapshot.this.staticMethodSignatures;
                 }
                 @Override protected List<EnumeratingWhitelist.FieldSignature> fieldSignatures() {
-                    return fieldSignatures;
+                    return Snapshot.this.fieldSignatures;
                 }
                 @Override protected List<EnumeratingWhitelist.FieldSignature> staticFieldSignatures() {
-                    return staticFieldSignatures;
+                    return Snapshot.this.staticFieldSignatures;
                 }
-            });
+            };
+            this.others = others.toArray(new Whitelist[others.size()]);
+        }
+
+        /** Shares the signatures (and their index) of another snapshot, as when merely wrapping one {@link ProxyWhitelist}. */
+        Snapshot(Snapshot base, List<Whitelist> others) {
+            methodSignatures = base.methodSignatures;
+            newSignatures = base.newSignatures;
+            staticMethodSignatures = base.staticMethodSignatures;
+            fieldSignatures = base.fieldSignatures;
+            staticFieldSignatures = base.staticFieldSignatures;
+            signatures = base.signatures;
+            this.others = others.toArray(new Whitelist[others.size()]);
+        }
+
+    }
+
+    /**
+     * Members found to be permitted by the aggregated signature lists.
+     * Such verdicts do not depend on the receiver, arguments, or current user,
+     * so unlike those of other delegates they remain valid until the next {@link #reset}.
+     * Denials are not recorded, since they may be overridden by other delegates.
+     */
+    private static final class PermittedCache {
+        final Set<Method> methods = newSet();
+        final Set<Constructor<?>> constructors = newSet();
+        final Set<Method> staticMethods = newSet();
+        final Set<Field> fields = newSet();
+        final Set<Field> staticFields = newSet();
+        private static <T> Set<T> newSet() {
+            return Collections.newSetFromMap(new ConcurrentHashMap<T,Boolean>());
+        }
+    }
+
+    public ProxyWhitelist(Collection<? extends Whitelist> delegates) {
+        reset(delegates);
+    }
+
+    private void reset() {
+        synchronized (resetLock) {
+            reset(originalDelegates);
+        }
+    }
+
+    public final void reset(Collection<? extends Whitelist> delegates) {
+        synchronized (resetLock) {
+            originalDelegates = delegates;
+            List<EnumeratingWhitelist> enumerating = new ArrayList<EnumeratingWhitelist>();
+            List<Snapshot> nested = new ArrayList<Snapshot>();
+            List<Whitelist> others = new ArrayList<Whitelist>();
             for (Whitelist delegate : delegates) {
                 if (delegate instanceof EnumeratingWhitelist) {
-                    EnumeratingWhitelist ew = (EnumeratingWhitelist) delegate;
-                    methodSignatures.addAll(ew.methodSignatures());
-                    newSignatures.addAll(ew.newSignatures());
-                    staticMethodSignatures.addAll(ew.staticMethodSignatures());
-                    fieldSignatures.addAll(ew.fieldSignatures());
-                    staticFieldSignatures.addAll(ew.staticFieldSignatures());
+                    enumerating.add((EnumeratingWhitelist) delegate);
                 } else if (delegate instanceof ProxyWhitelist) {
                     ProxyWhitelist pw = (ProxyWhitelist) delegate;
-                    pw.wrappers.put(this, null);
-                    for (Whitelist subdelegate : pw.delegates) {
-                        if (subdelegate instanceof EnumeratingWhitelist) {
-                            continue; // this is handled specially
-                        }
-                        this.delegates.add(subdelegate);
+                    synchronized (pw.wrappers) {
+                        pw.wrappers.put(this, null);
                     }
-                    methodSignatures.addAll(pw.methodSignatures);
-                    newSignatures.addAll(pw.newSignatures);
-                    staticMethodSignatures.addAll(pw.staticMethodSignatures);
-                    fieldSignatures.addAll(pw.fieldSignatures);
-                    staticFieldSignatures.addAll(pw.staticFieldSignatures);
+                    Snapshot s = pw.snapshot;
+                    nested.add(s);
+                    others.addAll(Arrays.asList(s.others));
                 } else {
-                    this.delegates.add(delegate);
+                    others.add(delegate);
                 }
             }
-            for (ProxyWhitelist pw : wrappers.keySet()) {
-                pw.reset();
+            if (enumerating.isEmpty() && nested.size() == 1) {
+                snapshot = new Snapshot(nested.get(0), others);
+            } else {
+                List<EnumeratingWhitelist.MethodSignature> methodSignatures = new ArrayList<EnumeratingWhitelist.MethodSignature>();
+                List<EnumeratingWhitelist.NewSignature> newSignatures = new ArrayList<EnumeratingWhitelist.NewSignature>();
+                List<EnumeratingWhitelist.MethodSignature> staticMethodSignatures = new ArrayList<EnumeratingWhitelist.MethodSignature>();
+                List<EnumeratingWhitelist.FieldSignature> fieldSignatures = new ArrayList<EnumeratingWhitelist.FieldSignature>();
+                List<EnumeratingWhitelist.FieldSignature> staticFieldSignatures = new ArrayList<EnumeratingWhitelist.FieldSignature>();
+                for (EnumeratingWhitelist ew : enumerating) {
+                    methodSignatures.addAll(ew.methodSignatures());
+                    newSignatures.addAll(ew.newSignatures());
+                    staticMethodSignatures.addAll(ew.staticMethodSignatures());
+                    fieldSignatures.addAll(ew.fieldSignatures());
+                    staticFieldSignatures.addAll(ew.staticFieldSignatures());
+                }
+                for (Snapshot s : nested) {
+                    methodSignatures.addAll(s.methodSignatures);
+                    newSignatures.addAll(s.newSignatures);
+                    staticMethodSignatures.addAll(s.staticMethodSignatures);
+                    fieldSignatures.addAll(s.fieldSignatures);
+                    staticFieldSignatures.addAll(s.staticFieldSignatures);
+                }
+                snapshot = new Snapshot(methodSignatures, newSignatures, staticMethodSignatures, fieldSignatures, staticFieldSignatures, others);
             }
         }
+        List<ProxyWhitelist> toReset;
+        synchronized (wrappers) {
+            toReset = new ArrayList<ProxyWhitelist>(wrappers.keySet());
+        }
+        for (ProxyWhitelist pw : toReset) {
+            pw.reset();
+        }
     }
 
     public ProxyWhitelist(Whitelist... delegates) {
@@ -121,77 +196,119 @@ public class ProxyWhitelist extends Whitelist {
     }
 
     @Override public final boolean permitsMethod(Method method, Object receiver, Object[] args) {
-        synchronized (this.delegates) {
-            for (Whitelist delegate : delegates) {
-                if (delegate.permitsMethod(method, receiver, args)) {
-                    return true;
-                }
+        Snapshot s = snapshot;
+        if (s.permitted.methods.contains(method)) {
+            return true;
+        }
+        if (s.signatures.permitsMethod(method, receiver, args)) {
+            s.permitted.methods.add(method);
+            return true;
+        }
+        for (Whitelist delegate : s.others) {
+            if (delegate.permitsMethod(method, receiver, args)) {
+                return true;
             }
         }
         return false;
     }
 
     @Override public final boolean permitsConstructor(Constructor<?> constructor, Object[] args) {
-        synchronized (this.delegates) {
-            for (Whitelist delegate : delegates) {
-                if (delegate.permitsConstructor(constructor, args)) {
-                    return true;
-                }
+        Snapshot s = snapshot;
+        if (s.permitted.constructors.contains(constructor)) {
+            return true;
+        }
+        if (s.signatures.permitsConstructor(constructor, args)) {
+            s.permitted.constructors.add(constructor);
+            return true;
+        }
+        for (Whitelist delegate : s.others) {
+            if (delegate.permitsConstructor(constructor, args)) {
+                return true;
             }
         }
         return false;
     }
 
     @Override public final boolean permitsStaticMethod(Method method, Object[] args) {
-        synchronized (this.delegates) {
-            for (Whitelist delegate : delegates) {
-                if (delegate.permitsStaticMethod(method, args)) {
-                    return true;
-                }
+        Snapshot s = snapshot;
+        if (s.permitted.staticMethods.contains(method)) {
+            return true;
+        }
+        if (s.signatures.permitsStaticMethod(method, args)) {
+            s.permitted.staticMethods.add(method);
+            return true;
+        }
+        for (Whitelist delegate : s.others) {
+            if (delegate.permitsStaticMethod(method, args)) {
+                return true;
             }
         }
         return false;
     }
 
     @Override public final boolean permitsFieldGet(Field field, Object receiver) {
-        synchronized (this.delegates) {
-            for (Whitelist delegate : delegates) {
-                if (delegate.permitsFieldGet(field, receiver)) {
-                    return true;
-                }
+        Snapshot s = snapshot;
+        if (s.permitted.fields.contains(field)) {
+            return true;
+        }
+        if (s.signatures.permitsFieldGet(field, receiver)) {
+            s.permitted.fields.add(field);
+            return true;
+        }
+        for (Whitelist delegate : s.others) {
+            if (delegate.permitsFieldGet(field, receiver)) {
+                return true;
             }
         }
         return false;
     }
 
     @Override public final boolean permitsFieldSet(Field field, Object receiver, Object value) {
-        synchronized (this.delegates) {
-            for (Whitelist delegate : delegates) {
-                if (delegate.permitsFieldSet(field, receiver, value)) {
-                    return true;
-                }
+        Snapshot s = snapshot;
+        if (s.permitted.fields.contains(field)) {
+            return true;
+        }
+        if (s.signatures.permitsFieldSet(field, receiver, value)) {
+            s.permitted.fields.add(field);
+            return true;
+        }
+        for (Whitelist delegate : s.others) {
+            if (delegate.permitsFieldSet(field, receiver, value)) {
+                return true;
             }
         }
         return false;
     }
 
     @Override public final boolean permitsStaticFieldGet(Field field) {
-        synchronized (this.delegates) {
-            for (Whitelist delegate : delegates) {
-                if (delegate.permitsStaticFieldGet(field)) {
-                    return true;
-                }
+        Snapshot s = snapshot;
+        if (s.permitted.staticFields.contains(field)) {
+            return true;
+        }
+        if (s.signatures.permitsStaticFieldGet(field)) {
+            s.permitted.staticFields.add(field);
+            return true;
+        }
+        for (Whitelist delegate : s.others) {
+            if (delegate.permitsStaticFieldGet(field)) {
+                return true;
             }
         }
         return false;
     }
 
     @Override public final boolean permitsStaticFieldSet(Field field, Object value) {
-        synchronized (this.delegates) {
-            for (Whitelist delegate : delegates) {
-                if (delegate.permitsStaticFieldSet(field, value)) {
-                    return true;
-                }
+        Snapshot s = snapshot;
+        if (s.permitted.staticFields.contains(field)) {
+            return true;
+        }
+        if (s.signatures.permitsStaticFieldSet(field, value)) {
+            s.permitted.staticFields.add(field);
+            return true;
+        }
+        for (Whitelist delegate : s.others) {
+            if (delegate.permitsStaticFieldSet(field, value)) {
+                return true;
             }
         }
         return false;
@@ -56,6 +56,11 @@ public final class ApprovalContext {
 
     }
 
+    /** Recreates a context from its fields, as recorded in {@link ApprovalJournal}. */
+    static ApprovalContext of(@CheckForNull String user, @CheckForNull String item, @CheckForNull String key) {
+        return new ApprovalContext(user, item, key);
+    }
+
     /**
      * Creates a context with a specified user ID.
      * ({@link ACL#SYSTEM} is automatically ignored.)
@@ -95,6 +100,11 @@ public final class ApprovalContext {
         return item != null ? Jenkins.getInstance().getItemByFullName(item) : null;
     }
 
+    /** Gets the full name of any associated item, without looking it up. */
+    @CheckForNull String getItemName() {
+        return item;
+    }
+
     /**
      * Associates a unique key with this approval.
      * If not null, any previous approval of the same kind with the same key will be canceled and replaced by this one.
@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.scriptsecurity.scripts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Append-only log of changes made to {@link ScriptApproval} since its configuration file was last written.
+ * Each record is a length-prefixed list of strings followed by a CRC-32, so that a record torn by a crash can be detected and discarded.
+ * When the configuration is written, the journal is first {@linkplain #rotate rotated} and then {@linkplain #deleteRotated deleted}.
+ * Records only ever add, remove, or clear entries, so replaying some which are already reflected in the configuration file is harmless.
+ */
+final class ApprovalJournal {
+
+    private static final Logger LOG = Logger.getLogger(ApprovalJournal.class.getName());
+
+    /** Kinds of change. Persisted by name. */
+    enum Op {
+        PREAPPROVE_SCRIPT,
+        APPROVE_SCRIPT,
+        DENY_SCRIPT,
+        CLEAR_APPROVED_SCRIPTS,
+        PENDING_SCRIPT,
+        APPROVE_SIGNATURE,
+        ACL_APPROVE_SIGNATURE,
+        DENY_SIGNATURE,
+        CLEAR_APPROVED_SIGNATURES,
+        PENDING_SIGNATURE,
+        APPROVE_CLASSPATH,
+        PENDING_CLASSPATH,
+        DENY_CLASSPATH,
+        DENY_APPROVED_CLASSPATH,
+        CLEAR_APPROVED_CLASSPATH
+    }
+
+    interface Handler {
+        void apply(@Nonnull Op op, @Nonnull String[] args);
+    }
+
+    private final File file;
+    private final File rotated;
+    private @CheckForNull FileChannel channel;
+    private long size;
+
+    ApprovalJournal(@Nonnull File file) {
+        this.file = file;
+        rotated = new File(file.getPath() + ".old");
+        size = file.length();
+    }
+
+    /**
+     * Appends a record.
+     * @param durable whether to wait for it (and any earlier records) to reach the disk
+     */
+    synchronized void append(boolean durable, @Nonnull Op op, @Nonnull String... args) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        writeString(out, op.name());
+        out.writeInt(args.length);
+        for (String arg : args) {
+            writeString(out, arg);
+        }
+        out.flush();
+        byte[] payload = baos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+        record.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        record.flip();
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        if (durable) {
+            channel.force(false);
+        }
+        size += payload.length + 8;
+    }
+
+    /** Waits for all records appended so far to reach the disk. */
+    synchronized void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /** Size of the current journal in bytes. */
+    synchronized long size() {
+        return size;
+    }
+
+    /** Whether there is nothing to replay. */
+    synchronized boolean isEmpty() {
+        return size == 0 && !rotated.isFile();
+    }
+
+    /**
+     * Applies all records, first from a rotated journal left behind by an interrupted write, then from the current journal.
+     * An incomplete or corrupt record ends the file it is in, and is truncated so that later records are appended after intact ones.
+     * @return the number of records applied
+     */
+    synchronized int replay(@Nonnull Handler handler) throws IOException {
+        int count = replay(rotated, handler);
+        count += replay(file, handler);
+        size = file.length();
+        return count;
+    }
+
+    private static int replay(File f, Handler handler) throws IOException {
+        if (!f.isFile()) {
+            return 0;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        int count = 0;
+        while (data.remaining() >= 4) {
+            int start = data.position();
+            int length = data.getInt();
+            if (length < 0 || data.remaining() < length + 4) {
+                data.position(start);
+                break;
+            }
+            byte[] payload = new byte[length];
+            data.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (data.getInt() != (int) crc.getValue()) {
+                data.position(start);
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            String name = readString(in);
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = readString(in);
+            }
+            Op op;
+            try {
+                op = Op.valueOf(name);
+            } catch (IllegalArgumentException x) {
+                LOG.log(Level.WARNING, "Skipping unknown record {0} in {1}", new Object[] {name, f});
+                continue;
+            }
+            try {
+                handler.apply(op, args);
+                count++;
+            } catch (RuntimeException x) {
+                LOG.log(Level.WARNING, "Failed to apply " + op + " from " + f, x);
+            }
+        }
+        if (data.position() < data.limit()) {
+            LOG.log(Level.WARNING, "Discarding {0} bytes of incomplete records at the end of {1}", new Object[] {data.limit() - data.position(), f});
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(data.position());
+            } finally {
+                raf.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Moves the current journal aside, to be deleted once the configuration file has been written.
+     * If an earlier rotated journal was never deleted, the current one is appended to it.
+     */
+    synchronized void rotate() throws IOException {
+        close();
+        if (file.isFile()) {
+            if (rotated.isFile()) {
+                Files.write(rotated.toPath(), Files.readAllBytes(file.toPath()), StandardOpenOption.APPEND);
+                Files.delete(file.toPath());
+            } else {
+                Files.move(file.toPath(), rotated.toPath());
+            }
+        }
+        size = 0;
+    }
+
+    /** Deletes the journal moved aside by {@link #rotate}. */
+    synchronized void deleteRotated() throws IOException {
+        Files.deleteIfExists(rotated.toPath());
+    }
+
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @CheckForNull String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static @CheckForNull String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+}
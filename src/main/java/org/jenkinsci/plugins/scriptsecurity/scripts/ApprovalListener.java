@@ -26,6 +26,8 @@ package org.jenkinsci.plugins.scriptsecurity.scripts;
 
 import hudson.ExtensionPoint;
 import java.net.URL;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Receives notifications on approval-related events.
@@ -45,6 +47,28 @@ public abstract class ApprovalListener implements ExtensionPoint {
      */
     public void onApprovedClasspathEntry(String hash, URL url) {}
 
+    /**
+     * Called when several scripts are approved at once.
+     * By default calls {@link #onApproved(String)} for each.
+     * @param hashes opaque tokens as in {@link UnapprovedUsageException#getHash}
+     */
+    public void onApproved(List<String> hashes) {
+        for (String hash : hashes) {
+            onApproved(hash);
+        }
+    }
+
+    /**
+     * Called when several classpath entries are approved at once.
+     * By default calls {@link #onApprovedClasspathEntry} for each.
+     * @param entries locations keyed by opaque tokens as in {@link UnapprovedClasspathException#getHash}
+     */
+    public void onApprovedClasspathEntries(Map<String,URL> entries) {
+        for (Map.Entry<String,URL> entry : entries.entrySet()) {
+            onApprovedClasspathEntry(entry.getKey(), entry.getValue());
+        }
+    }
+
     // TODO as needed: onDenied, onCleared
 
 }
@@ -74,7 +74,7 @@ public final class ClasspathEntry extends AbstractDescribableImpl<ClasspathEntry
     }
 
     /** Returns {@code null} if another protocol or unable to perform the conversion. */
-    private static File urlToFile(@Nonnull URL url) {
+    static @CheckForNull File urlToFile(@Nonnull URL url) {
         if (url.getProtocol().equals("file")) {
             try {
                 return new File(url.toURI());
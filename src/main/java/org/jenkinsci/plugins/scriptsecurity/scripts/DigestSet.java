@@ -0,0 +1,205 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.scriptsecurity.scripts;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A set of SHA-1 digests, given as hexadecimal strings but stored in binary form.
+ * Uses an open-addressed hash table of three {@code long}s per slot: the twenty bytes of the digest, plus a marker bit for an occupied slot.
+ * {@link #contains} may be called without locking; updates are synchronized.
+ */
+final class DigestSet {
+
+    private static final int DIGEST_LENGTH = 20;
+    private static final long OCCUPIED = 1L << 32;
+    private static final int WORDS = 3;
+
+    /**
+     * The current table. Rewritten (to the same value) after each addition,
+     * so that readers see complete entries; replaced when resized or when entries are removed.
+     */
+    private volatile Table table = new Table(16);
+    private int size;
+
+    private static final class Table {
+        final long[] words;
+        final int mask;
+        Table(int capacity) {
+            words = new long[capacity * WORDS];
+            mask = capacity - 1;
+        }
+        int capacity() {
+            return mask + 1;
+        }
+        /** @return the slot holding the digest, or the empty slot where it would go */
+        int find(long w0, long w1, long w2) {
+            int i = (int) (w0 ^ (w0 >>> 32)) & mask;
+            while (true) {
+                long marker = words[i * WORDS + 2];
+                if (marker == 0 || marker == w2 && words[i * WORDS] == w0 && words[i * WORDS + 1] == w1) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+        boolean occupied(int slot) {
+            return words[slot * WORDS + 2] != 0;
+        }
+        void put(int slot, long w0, long w1, long w2) {
+            words[slot * WORDS] = w0;
+            words[slot * WORDS + 1] = w1;
+            words[slot * WORDS + 2] = w2; // last, as this marks the slot occupied
+        }
+    }
+
+    /**
+     * Parses a digest.
+     * @return the three words, or null if this is not a hexadecimal SHA-1 digest
+     */
+    private static @CheckForNull long[] parse(@Nonnull String hex) {
+        if (hex.length() != DIGEST_LENGTH * 2) {
+            return null;
+        }
+        long w0 = 0, w1 = 0, w2 = 0;
+        for (int i = 0; i < DIGEST_LENGTH * 2; i++) {
+            int d = Character.digit(hex.charAt(i), 16);
+            if (d == -1) {
+                return null;
+            }
+            if (i < 16) {
+                w0 = w0 << 4 | d;
+            } else if (i < 32) {
+                w1 = w1 << 4 | d;
+            } else {
+                w2 = w2 << 4 | d;
+            }
+        }
+        return new long[] {w0, w1, w2 | OCCUPIED};
+    }
+
+    private static String format(long w0, long w1, long w2) {
+        StringBuilder b = new StringBuilder(DIGEST_LENGTH * 2);
+        appendHex(b, w0, 16);
+        appendHex(b, w1, 16);
+        appendHex(b, w2 & (OCCUPIED - 1), 8);
+        return b.toString();
+    }
+
+    private static void appendHex(StringBuilder b, long word, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            b.append(Character.forDigit((int) (word >>> shift) & 0xF, 16));
+        }
+    }
+
+    public boolean contains(@Nonnull String hex) {
+        long[] w = parse(hex);
+        if (w == null) {
+            return false;
+        }
+        Table t = table;
+        return t.occupied(t.find(w[0], w[1], w[2]));
+    }
+
+    /**
+     * Adds a digest.
+     * @return true if it was added; false if it was already present, or is not a SHA-1 digest (and so could never be matched)
+     */
+    public synchronized boolean add(@Nonnull String hex) {
+        long[] w = parse(hex);
+        if (w == null) {
+            return false;
+        }
+        Table t = table;
+        int slot = t.find(w[0], w[1], w[2]);
+        if (t.occupied(slot)) {
+            return false;
+        }
+        if ((size + 1) * 4 > t.capacity() * 3) {
+            t = rehash(t.capacity() * 2, null);
+            slot = t.find(w[0], w[1], w[2]);
+        }
+        t.put(slot, w[0], w[1], w[2]);
+        size++;
+        table = t;
+        return true;
+    }
+
+    public synchronized boolean remove(@Nonnull String hex) {
+        long[] w = parse(hex);
+        if (w == null) {
+            return false;
+        }
+        Table t = table;
+        int slot = t.find(w[0], w[1], w[2]);
+        if (!t.occupied(slot)) {
+            return false;
+        }
+        // Rather than leaving tombstones, rebuild without it, since removals are rare.
+        table = rehash(t.capacity(), w);
+        size--;
+        return true;
+    }
+
+    public synchronized void clear() {
+        table = new Table(16);
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Lists all digests in hexadecimal, in no particular order. */
+    public synchronized @Nonnull List<String> toList() {
+        List<String> r = new ArrayList<String>(size);
+        Table t = table;
+        for (int slot = 0; slot < t.capacity(); slot++) {
+            if (t.occupied(slot)) {
+                r.add(format(t.words[slot * WORDS], t.words[slot * WORDS + 1], t.words[slot * WORDS + 2]));
+            }
+        }
+        return r;
+    }
+
+    /** Copies the current table into a new one, optionally omitting one digest. */
+    private Table rehash(int capacity, @CheckForNull long[] omit) {
+        Table from = table;
+        Table to = new Table(capacity);
+        for (int slot = 0; slot < from.capacity(); slot++) {
+            if (from.occupied(slot)) {
+                long w0 = from.words[slot * WORDS], w1 = from.words[slot * WORDS + 1], w2 = from.words[slot * WORDS + 2];
+                if (omit == null || w0 != omit[0] || w1 != omit[1] || w2 != omit[2]) {
+                    to.put(to.find(w0, w1, w2), w0, w1, w2);
+                }
+            }
+        }
+        return to;
+    }
+
+}
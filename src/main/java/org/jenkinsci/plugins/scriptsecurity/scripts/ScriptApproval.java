@@ -27,46 +27,86 @@ package org.jenkinsci.plugins.scriptsecurity.scripts;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.AclAwareWhitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.MutableWhitelist;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.ProxyWhitelist;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.RejectedAccessException;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.StaticWhitelist;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.Util;
 import hudson.XmlFile;
+import hudson.init.Terminator;
 import hudson.model.RootAction;
 import hudson.model.Saveable;
 import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
 import hudson.util.XStream2;
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import net.sf.json.JSON;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.DoNotUse;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
@@ -145,20 +185,26 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
         }
     }
     
-    /** All scripts which are already approved, via {@link #hash}. */
+    /** Persisted form of {@link #approvedScripts}, populated only while loading and in snapshots written by {@link #flush}. */
     private final TreeSet<String> approvedScriptHashes = new TreeSet<String>();
 
+    /** All scripts which are already approved, via {@link #hash}, kept in binary form. May be read without holding the monitor. */
+    private transient final DigestSet approvedScripts = new DigestSet();
+
     /** All sandbox signatures which are already whitelisted, in {@link StaticWhitelist} format. */
     private final TreeSet<String> approvedSignatures = new TreeSet<String>();
 
     /** All sandbox signatures which are already whitelisted for ACL-only use, in {@link StaticWhitelist} format. */
     private /*final*/ TreeSet<String> aclApprovedSignatures;
 
-    /** All external classpath entries allowed used for scripts. */
+    /** Persisted form of {@link #approvedClasspath}, like {@link #approvedScriptHashes}. */
     private /*final*/ TreeSet<ApprovedClasspathEntry> approvedClasspathEntries;
 
+    /** All external classpath entries allowed used for scripts. May be read without holding the monitor. */
+    private transient final ConcurrentSkipListSet<ApprovedClasspathEntry> approvedClasspath = new ConcurrentSkipListSet<ApprovedClasspathEntry>();
+
     /* for test */ void addApprovedClasspathEntry(ApprovedClasspathEntry acp) {
-        approvedClasspathEntries.add(acp);
+        approvedClasspath.add(acp);
     }
 
     @Restricted(NoExternalUse.class) // for use from Jelly
@@ -192,12 +238,19 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
         public final String script;
         private final String language;
         PendingScript(@Nonnull String script, @Nonnull Language language, @Nonnull ApprovalContext context) {
+            this(script, language.getName(), context);
+        }
+        private PendingScript(@Nonnull String script, @Nonnull String language, @Nonnull ApprovalContext context) {
             super(context);
             this.script = script;
-            this.language = language.getName();
+            this.language = language;
         }
+        private transient String hash;
         public String getHash() {
-            return hash(script, language);
+            if (hash == null) {
+                hash = ScriptApproval.hash(script, language);
+            }
+            return hash;
         }
         public Language getLanguage() {
             for (Language l : ExtensionList.lookup(Language.class)) {
@@ -303,6 +356,9 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
 
     private final LinkedHashSet<PendingScript> pendingScripts = new LinkedHashSet<PendingScript>();
 
+    /** {@link #pendingScripts} by {@link PendingScript#getHash}. */
+    private transient final Map<String,PendingScript> pendingScriptsByHash = new HashMap<String,PendingScript>();
+
     private final LinkedHashSet<PendingSignature> pendingSignatures = new LinkedHashSet<PendingSignature>();
 
     private /*final*/ TreeSet<PendingClasspathEntry> pendingClasspathEntries;
@@ -322,6 +378,8 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
     }
 
     public ScriptApproval() {
+        File journalFile = getJournalFile();
+        journal = journalFile != null ? new ApprovalJournal(journalFile) : null;
         try {
             load();
         } catch (IOException x) {
@@ -331,30 +389,104 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
         if (aclApprovedSignatures == null) {
             aclApprovedSignatures = new TreeSet<String>();
         }
-        if (approvedClasspathEntries == null) {
-            approvedClasspathEntries = new TreeSet<ApprovedClasspathEntry>();
+        for (String hash : approvedScriptHashes) {
+            if (!approvedScripts.add(hash)) {
+                LOG.log(Level.WARNING, "Ignoring malformed approved script hash {0}", hash);
+            }
+        }
+        approvedScriptHashes.clear();
+        for (PendingScript ps : pendingScripts) {
+            pendingScriptsByHash.put(ps.getHash(), ps);
+        }
+        if (approvedClasspathEntries != null) {
+            approvedClasspath.addAll(approvedClasspathEntries);
+            approvedClasspathEntries = null;
         }
         if (pendingClasspathEntries == null) {
             pendingClasspathEntries = new TreeSet<PendingClasspathEntry>();
         }
-        // Check for loaded class directories
-        boolean changed = false;
-        for (Iterator<ApprovedClasspathEntry> i = approvedClasspathEntries.iterator(); i.hasNext();) {
-            if (i.next().isClassDirectory()) {
-                i.remove();
-                changed = true;
-            }
-        }
-        if (changed) {
+        if (journal != null) {
             try {
-                save();
+                int replayed = journal.replay(new ApprovalJournal.Handler() {
+                    @Override public void apply(ApprovalJournal.Op op, String[] args) {
+                        ScriptApproval.this.apply(op, args);
+                    }
+                });
+                LOG.log(Level.FINE, "Replayed {0} changes from {1}", new Object[] {replayed, journalFile});
             } catch (IOException x) {
-                LOG.log(Level.WARNING, "Unable to save changes after cleaning accepted class directories", x);
+                LOG.log(Level.WARNING, "Unable to replay changes from " + journalFile, x);
             }
         }
+        // Check for loaded class directories, which requires a filesystem access per entry, so do not make startup wait.
+        if (approvedClasspath.isEmpty()) {
+            removeClassDirectories();
+        } else {
+            Timer.get().submit(new Runnable() {
+                @Override public void run() {
+                    removeClassDirectories();
+                }
+            });
+        }
     }
 
-    private static String hash(String script, String language) {
+    /** Set once {@link #removeClassDirectories} has finished; until then, {@link #using(ClasspathEntry, String)} checks for itself. */
+    private transient volatile boolean classDirectoriesRemoved;
+
+    /** Removes any approved classpath entries which turn out to be class directories, which are no longer allowed. */
+    private void removeClassDirectories() {
+        for (ApprovedClasspathEntry entry : approvedClasspath) {
+            if (entry.isClassDirectory()) {
+                LOG.log(Level.INFO, "Removing approval of class directory {0}", entry.getURL());
+                synchronized (this) {
+                    change(true, ApprovalJournal.Op.DENY_APPROVED_CLASSPATH, entry.getHash());
+                }
+            }
+        }
+        classDirectoriesRemoved = true;
+    }
+
+    /** Copies the persistent state of another instance, for {@link #flush}. */
+    private ScriptApproval(ScriptApproval original) {
+        journal = null;
+        approvedScriptHashes.addAll(original.approvedScripts.toList());
+        approvedSignatures.addAll(original.approvedSignatures);
+        aclApprovedSignatures = new TreeSet<String>(original.aclApprovedSignatures);
+        approvedClasspathEntries = new TreeSet<ApprovedClasspathEntry>(original.approvedClasspath);
+        pendingScripts.addAll(original.pendingScripts);
+        pendingSignatures.addAll(original.pendingSignatures);
+        pendingClasspathEntries = new TreeSet<PendingClasspathEntry>(original.pendingClasspathEntries);
+    }
+
+    /**
+     * Hashes a script, remembering the result for the same script text.
+     * Package visibility to be used in tests.
+     */
+    static String hash(String script, String language) {
+        ScriptHash cached = scriptHashes.getIfPresent(script);
+        if (cached != null && cached.language.equals(language)) {
+            return cached.hash;
+        }
+        String hash = computeHash(script, language);
+        scriptHashes.put(script, new ScriptHash(language, hash));
+        return hash;
+    }
+
+    /**
+     * Recently computed {@link #hash}es, keyed by the identity of the script text,
+     * which is typically held for a long time by the configuration using it.
+     */
+    private static final Cache<String,ScriptHash> scriptHashes = CacheBuilder.newBuilder().weakKeys().maximumSize(1000).build();
+
+    private static final class ScriptHash {
+        final String language;
+        final String hash;
+        ScriptHash(String language, String hash) {
+            this.language = language;
+            this.hash = hash;
+        }
+    }
+
+    private static String computeHash(String script, String language) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-1");
             digest.update(language.getBytes("UTF-8"));
@@ -370,16 +502,101 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
 
     /**
      * Creates digest of JAR contents.
+     * Digests of regular files are reused while the size, timestamp, and file key are unchanged,
+     * unless the file was modified within {@link #TIMESTAMP_RESOLUTION} of being read
+     * (so a further rewrite might not change the timestamp),
+     * and in any case for no longer than {@link #CLASSPATH_DIGEST_TTL}.
+     * A file rewritten in place with the same size and its old timestamp deliberately restored
+     * may thus still report its former digest until that expires.
      * Package visibility to be used in tests.
      */
     static String hashClasspathEntry(URL entry) throws IOException {
+        File file = ClasspathEntry.urlToFile(entry);
+        if (file == null) {
+            return digestClasspathEntry(entry);
+        }
+        Path path = file.toPath();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException x) {
+            return digestClasspathEntry(entry); // let it fail in the usual way
+        }
+        if (!attributes.isRegularFile()) {
+            return digestClasspathEntry(entry);
+        }
+        String canonicalPath = file.getCanonicalPath();
+        ClasspathEntryDigest cached = classpathEntryDigests.getIfPresent(canonicalPath);
+        if (cached != null && cached.matches(attributes)) {
+            return cached.hash;
+        }
+        long checked = System.currentTimeMillis();
+        ClasspathEntryDigest digest = new ClasspathEntryDigest(attributes, digestFile(path));
+        if (digest.matches(Files.readAttributes(path, BasicFileAttributes.class)) // not modified while reading
+                && checked - digest.lastModified.toMillis() > TIMESTAMP_RESOLUTION) { // nor possibly modified since without a new timestamp
+            classpathEntryDigests.put(canonicalPath, digest);
+        }
+        return digest.hash;
+    }
+
+    /** Coarsest file timestamp granularity we expect to encounter, in milliseconds (FAT has two seconds). */
+    private static final long TIMESTAMP_RESOLUTION = 2000;
+
+    /** How long, in minutes, to trust a result of {@link #hashClasspathEntry} for an unchanged file. */
+    private static final long CLASSPATH_DIGEST_TTL = 1;
+
+    /** Recent results of {@link #hashClasspathEntry} for regular files, by canonical path. */
+    private static final Cache<String,ClasspathEntryDigest> classpathEntryDigests = CacheBuilder.newBuilder().maximumSize(1000).expireAfterWrite(CLASSPATH_DIGEST_TTL, TimeUnit.MINUTES).build();
+
+    /** The digest of a file, valid so long as its metadata is unchanged. */
+    private static final class ClasspathEntryDigest {
+        final long size;
+        final FileTime lastModified;
+        final @CheckForNull Object fileKey;
+        final String hash;
+        ClasspathEntryDigest(BasicFileAttributes attributes, String hash) {
+            size = attributes.size();
+            lastModified = attributes.lastModifiedTime();
+            fileKey = attributes.fileKey();
+            this.hash = hash;
+        }
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified.equals(attributes.lastModifiedTime()) && Objects.equal(fileKey, attributes.fileKey());
+        }
+    }
+
+    /**
+     * Like {@link #digestClasspathEntry} but reading directly from a local file into a large buffer.
+     * (Not memory-mapped, since a mapped file cannot be deleted or replaced on Windows until the mapping is collected.)
+     */
+    private static String digestFile(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE); // not direct: MessageDigest would copy it to a heap array anyway
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            return Util.toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static final int DIGEST_BUFFER_SIZE = 256 * 1024;
+
+    private static String digestClasspathEntry(URL entry) throws IOException {
         InputStream is = entry.openStream();
         try {
             DigestInputStream input = null;
             try {
                 MessageDigest digest = MessageDigest.getInstance("SHA-1");
                 input = new DigestInputStream(new BufferedInputStream(is), digest);
-                byte[] buffer = new byte[1024];
+                byte[] buffer = new byte[8192];
                 while (input.read(buffer) != -1) {
                     // discard
                 }
@@ -410,27 +627,19 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
      * @return {@code script}, for convenience
      * @throws IllegalStateException {@link Jenkins} instance is not ready
      */
-    public synchronized String configuring(@Nonnull String script, @Nonnull Language language, @Nonnull ApprovalContext context) {
+    public String configuring(@Nonnull String script, @Nonnull Language language, @Nonnull ApprovalContext context) {
         final String hash = hash(script, language.getName());
-        if (!approvedScriptHashes.contains(hash)) {
+        if (approvedScripts.contains(hash)) {
+            return script;
+        }
+        synchronized (this) {
+            if (approvedScripts.contains(hash)) {
+                return script;
+            }
             if (!Jenkins.getInstance().isUseSecurity() || Jenkins.getAuthentication() != ACL.SYSTEM && Jenkins.getInstance().hasPermission(Jenkins.RUN_SCRIPTS)) {
-                approvedScriptHashes.add(hash);
+                change(true, ApprovalJournal.Op.PREAPPROVE_SCRIPT, hash);
             } else {
-                String key = context.getKey();
-                if (key != null) {
-                    Iterator<PendingScript> it = pendingScripts.iterator();
-                    while (it.hasNext()) {
-                        if (key.equals(it.next().getContext().getKey())) {
-                            it.remove();
-                        }
-                    }
-                }
-                pendingScripts.add(new PendingScript(script, language, context));
-            }
-            try {
-                save();
-            } catch (IOException x) {
-                LOG.log(Level.WARNING, null, x);
+                change(false, ApprovalJournal.Op.PENDING_SCRIPT, script, language.getName(), context.getUser(), context.getItemName(), context.getKey());
             }
         }
         return script;
@@ -443,14 +652,14 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
      * @return {@code script}, for convenience
      * @throws UnapprovedUsageException in case it has not yet been approved
      */
-    public synchronized String using(@Nonnull String script, @Nonnull Language language) throws UnapprovedUsageException {
+    public String using(@Nonnull String script, @Nonnull Language language) throws UnapprovedUsageException {
         if (script.length() == 0) {
             // As a special case, always consider the empty script preapproved, as this is usually the default for new fields,
             // and in many cases there is some sensible behavior for an emoty script which we want to permit.
             return script;
         }
         String hash = hash(script, language.getName());
-        if (!approvedScriptHashes.contains(hash)) {
+        if (!approvedScripts.contains(hash)) {
             // Probably need not add to pendingScripts, since generally that would have happened already in configuring.
             throw new UnapprovedUsageException(hash);
         }
@@ -458,8 +667,14 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
     }
 
     // Only for testing
-    synchronized boolean isScriptHashApproved(String hash) {
-        return approvedScriptHashes.contains(hash);
+    boolean isScriptHashApproved(String hash) {
+        return approvedScripts.contains(hash);
+    }
+
+    // Only for testing
+    synchronized boolean isScriptPending(String hash) {
+        PendingScript ps = pendingScriptsByHash.get(hash);
+        return ps != null && pendingScripts.contains(ps);
     }
 
     /**
@@ -469,52 +684,102 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
      * @param context any additional information
      * @throws IllegalStateException {@link Jenkins} instance is not ready
      */
-    public synchronized void configuring(@Nonnull ClasspathEntry entry, @Nonnull ApprovalContext context) {
+    public void configuring(@Nonnull ClasspathEntry entry, @Nonnull ApprovalContext context) {
+        configuring(Collections.singletonList(entry), context);
+    }
+
+    /**
+     * Like {@link #configuring(ClasspathEntry, ApprovalContext)} for several entries, which are hashed concurrently.
+     * @param entries entries to be configured
+     * @param context any additional information
+     * @throws IllegalStateException {@link Jenkins} instance is not ready
+     */
+    public void configuring(@Nonnull List<ClasspathEntry> entries, @Nonnull ApprovalContext context) {
         // In order to try to minimize changes for existing class directories that could be saved
         // - Class directories are ignored here (issuing a warning)
         // - When trying to use them, the job will fail
         // - Going to the configuration page you'll have the validation error in the classpath entry
-        if (entry.isClassDirectory()) {
-            LOG.log(Level.WARNING, "Classpath {0} is a class directory, which are not allowed. Ignored in configuration, use will be rejected",
-                    entry.getURL());
-            return;
+        List<ClasspathEntry> archives = new ArrayList<ClasspathEntry>(entries.size());
+        for (ClasspathEntry entry : entries) {
+            if (entry.isClassDirectory()) {
+                LOG.log(Level.WARNING, "Classpath {0} is a class directory, which are not allowed. Ignored in configuration, use will be rejected",
+                        entry.getURL());
+            } else {
+                archives.add(entry);
+            }
         }
-        //TODO: better error propagation
-        URL url = entry.getURL();
-        String hash;
-        try {
-            hash = hashClasspathEntry(url);
-        } catch (IOException x) {
-            // This is a case the path doesn't really exist
-            LOG.log(Level.WARNING, null, x);
-            return;
+        List<Future<String>> hashes = hashClasspathEntries(archives);
+        for (int i = 0; i < archives.size(); i++) {
+            //TODO: better error propagation
+            URL url = archives.get(i).getURL();
+            String hash;
+            try {
+                hash = getHash(hashes.get(i));
+            } catch (IOException x) {
+                // This is a case the path doesn't really exist
+                LOG.log(Level.WARNING, null, x);
+                continue;
+            }
+            configuring(url, hash, context);
         }
-        
+    }
+
+    private synchronized void configuring(URL url, String hash, ApprovalContext context) {
         ApprovedClasspathEntry acp = new ApprovedClasspathEntry(hash, url);
-        if (!approvedClasspathEntries.contains(acp)) {
-            boolean shouldSave = false;
-            PendingClasspathEntry pcp = new PendingClasspathEntry(hash, url, context);
+        if (!approvedClasspath.contains(acp)) {
             if (!Jenkins.getInstance().isUseSecurity() || (Jenkins.getAuthentication() != ACL.SYSTEM && Jenkins.getInstance().hasPermission(Jenkins.RUN_SCRIPTS))) {
                 LOG.log(Level.FINE, "Classpath entry {0} ({1}) is approved as configured with RUN_SCRIPTS permission.", new Object[] {url, hash});
-                pendingClasspathEntries.remove(pcp);
-                approvedClasspathEntries.add(acp);
-                shouldSave = true;
+                change(true, ApprovalJournal.Op.APPROVE_CLASSPATH, hash, url.toString());
             } else {
-                if (pendingClasspathEntries.add(pcp)) {
+                if (change(false, ApprovalJournal.Op.PENDING_CLASSPATH, hash, url.toString(), context.getUser(), context.getItemName(), context.getKey())) {
                     LOG.log(Level.FINE, "{0} ({1}) is pending", new Object[] {url, hash});
-                    shouldSave = true;
                 }
             }
-            if (shouldSave) {
-                try {
-                    save();
-                } catch (IOException x) {
-                    LOG.log(Level.WARNING, null, x);
+        }
+    }
+
+    /**
+     * Starts computing {@link #hashClasspathEntry} for each entry, concurrently if there are several.
+     * @return the eventual hashes, in the same order
+     */
+    private static List<Future<String>> hashClasspathEntries(List<ClasspathEntry> entries) {
+        List<Future<String>> hashes = new ArrayList<Future<String>>(entries.size());
+        for (final ClasspathEntry entry : entries) {
+            FutureTask<String> hash = new FutureTask<String>(new Callable<String>() {
+                @Override public String call() throws Exception {
+                    return hashClasspathEntry(entry.getURL());
                 }
+            });
+            if (entries.size() == 1) {
+                hash.run();
+            } else {
+                hashingExecutor.execute(hash);
             }
+            hashes.add(hash);
         }
+        return hashes;
     }
-    
+
+    private static String getHash(Future<String> hash) throws IOException {
+        try {
+            return hash.get();
+        } catch (InterruptedException x) {
+            throw (IOException) new InterruptedIOException().initCause(x);
+        } catch (ExecutionException x) {
+            Throwables.propagateIfPossible(x.getCause(), IOException.class);
+            throw new IOException(x.getCause());
+        }
+    }
+
+    /** Used by {@link #hashClasspathEntries}; threads exit when idle. */
+    private static final ThreadPoolExecutor hashingExecutor;
+    static {
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        hashingExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "ScriptApproval.hashClasspathEntry"));
+        hashingExecutor.allowCoreThreadTimeOut(true);
+    }
+
     /**
      * Like {@link #checking(String, Language)} but for classpath entries.
      * (This is automatic if use {@link ClasspathEntry} as a configuration element.)
@@ -522,14 +787,14 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
      * @return whether it will be approved
      * @throws IllegalStateException {@link Jenkins} instance is not ready
      */
-    public synchronized FormValidation checking(@Nonnull ClasspathEntry entry) {
+    public FormValidation checking(@Nonnull ClasspathEntry entry) {
         //TODO: better error propagation
         if (entry.isClassDirectory()) {
             return FormValidation.error(Messages.ClasspathEntry_path_noDirsAllowed());
         }
         URL url = entry.getURL();
         try {
-            if (!Jenkins.getInstance().hasPermission(Jenkins.RUN_SCRIPTS) && !approvedClasspathEntries.contains(new ApprovedClasspathEntry(hashClasspathEntry(url), url))) {
+            if (!Jenkins.getInstance().hasPermission(Jenkins.RUN_SCRIPTS) && !approvedClasspath.contains(new ApprovedClasspathEntry(hashClasspathEntry(url), url))) {
                 return FormValidation.error(Messages.ClasspathEntry_path_notApproved());
             } else {
                 return FormValidation.ok();
@@ -548,24 +813,49 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
      * @throws IOException when failed to the entry is inaccessible
      * @throws UnapprovedClasspathException when the entry is not approved
      */
-    public synchronized void using(@Nonnull ClasspathEntry entry) throws IOException, UnapprovedClasspathException {
+    public void using(@Nonnull ClasspathEntry entry) throws IOException, UnapprovedClasspathException {
+        using(entry, hashClasspathEntry(entry.getURL()));
+    }
+
+    /**
+     * Like {@link #using(ClasspathEntry)} for several entries, which are hashed concurrently.
+     * @param entries classpath entries
+     * @throws IOException when failed to the entry is inaccessible
+     * @throws UnapprovedClasspathException when the first unusable entry is not approved
+     */
+    public void using(@Nonnull List<ClasspathEntry> entries) throws IOException, UnapprovedClasspathException {
+        usingClasspath(entries);
+    }
+
+    /**
+     * Like {@link #using(List)} but also returns the hashes which were checked.
+     * @return the hashes of the entries, in the same order
+     */
+    @Restricted(NoExternalUse.class) // SecureGroovyScript
+    public @Nonnull List<String> usingClasspath(@Nonnull List<ClasspathEntry> entries) throws IOException, UnapprovedClasspathException {
+        List<Future<String>> futures = hashClasspathEntries(entries);
+        List<String> hashes = new ArrayList<String>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            String hash = getHash(futures.get(i));
+            using(entries.get(i), hash);
+            hashes.add(hash);
+        }
+        return hashes;
+    }
+
+    private void using(ClasspathEntry entry, String hash) throws UnapprovedClasspathException {
         URL url = entry.getURL();
-        String hash = hashClasspathEntry(url);
-        
-        if (!approvedClasspathEntries.contains(new ApprovedClasspathEntry(hash, url))) {
+
+        if (!approvedClasspath.contains(new ApprovedClasspathEntry(hash, url)) || !classDirectoriesRemoved && entry.isClassDirectory()) {
             // Don't add it to pending if it is a class directory
             if (entry.isClassDirectory()) {
                 LOG.log(Level.WARNING, "Classpath {0} ({1}) is a class directory, which are not allowed.", new Object[] {url, hash});
                 throw new UnapprovedClasspathException("classpath entry %s is a class directory, which are not allowed.", url, hash);
             } else {
                 // Never approve classpath here.
-                ApprovalContext context = ApprovalContext.create();
-                if (pendingClasspathEntries.add(new PendingClasspathEntry(hash, url, context))) {
-                    LOG.log(Level.FINE, "{0} ({1}) is pending.", new Object[] {url, hash});
-                    try {
-                        save();
-                    } catch (IOException x) {
-                        LOG.log(Level.WARNING, null, x);
+                synchronized (this) {
+                    if (change(false, ApprovalJournal.Op.PENDING_CLASSPATH, hash, url.toString(), null, null, null)) {
+                        LOG.log(Level.FINE, "{0} ({1}) is pending.", new Object[] {url, hash});
                     }
                 }
             }
@@ -581,8 +871,8 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
      * @param language the language in which it is written
      * @return a warning in case the script is not yet approved and this user lacks {@link Jenkins#RUN_SCRIPTS}, else {@link FormValidation#ok()}
      */
-    public synchronized FormValidation checking(@Nonnull String script, @Nonnull Language language) {
-        if (!Jenkins.getInstance().hasPermission(Jenkins.RUN_SCRIPTS) && !approvedScriptHashes.contains(hash(script, language.getName()))) {
+    public FormValidation checking(@Nonnull String script, @Nonnull Language language) {
+        if (!Jenkins.getInstance().hasPermission(Jenkins.RUN_SCRIPTS) && !approvedScripts.contains(hash(script, language.getName()))) {
             return FormValidation.warningWithMarkup("A Jenkins administrator will need to approve this script before it can be used.");
         } else {
             return FormValidation.ok();
@@ -598,7 +888,7 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
      * @return {@code script}, for convenience
      */
     public synchronized String preapprove(@Nonnull String script, @Nonnull Language language) {
-        approvedScriptHashes.add(hash(script, language.getName()));
+        approvedScripts.add(hash(script, language.getName()));
         return script;
     }
 
@@ -609,30 +899,98 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
      */
     public synchronized void preapproveAll() {
         for (PendingScript ps : pendingScripts) {
-            approvedScriptHashes.add(ps.getHash());
+            approvedScripts.add(ps.getHash());
         }
         pendingScripts.clear();
+        pendingScriptsByHash.clear();
     }
 
     /**
      * To be called when a sandbox rejects access for a script not using manual approval.
      * The signature of the failing method (if known) will be added to the pending list.
+     * This happens shortly afterwards in the background, so that a burst of rejections takes the lock only once.
      * @param x an exception with the details
      * @param context any additional information about where or by whom this script was run
      * @return {@code x}, for convenience in rethrowing
      */
-    public synchronized RejectedAccessException accessRejected(@Nonnull RejectedAccessException x, @Nonnull ApprovalContext context) {
+    public RejectedAccessException accessRejected(@Nonnull RejectedAccessException x, @Nonnull ApprovalContext context) {
         String signature = x.getSignature();
-        if (signature != null && pendingSignatures.add(new PendingSignature(signature, x.isDangerous(), context))) {
-            try {
-                save();
-            } catch (IOException x2) {
-                LOG.log(Level.WARNING, null, x2);
+        if (signature != null) {
+            Rejection r = rejections.get(signature);
+            if (r == null) {
+                Rejection fresh = new Rejection(x.isDangerous(), context);
+                r = rejections.putIfAbsent(signature, fresh);
+                if (r == null) {
+                    r = fresh;
+                }
+            }
+            r.context = context;
+            r.count.incrementAndGet();
+            if (rejectionsScheduled.compareAndSet(false, true)) {
+                Timer.get().schedule(new Runnable() {
+                    @Override public void run() {
+                        foldRejections();
+                    }
+                }, REJECTION_DELAY, TimeUnit.MILLISECONDS);
             }
         }
         return x;
     }
 
+    /** How long to collect rejections before adding them to {@link #pendingSignatures}, in milliseconds. */
+    static /* not final, for tests */ long REJECTION_DELAY = Long.getLong(ScriptApproval.class.getName() + ".REJECTION_DELAY", 100);
+
+    /** The most signatures to keep pending; rejections of further signatures are only logged. */
+    static /* not final, for tests */ int MAX_PENDING_SIGNATURES = Integer.getInteger(ScriptApproval.class.getName() + ".MAX_PENDING_SIGNATURES", 1000);
+
+    /** Signatures rejected by {@link #accessRejected} since the last {@link #foldRejections}. */
+    private static final class Rejection {
+        final boolean dangerous;
+        final AtomicInteger count = new AtomicInteger();
+        /** The most recent context; set on construction, so never null once published. */
+        volatile @Nonnull ApprovalContext context;
+        Rejection(boolean dangerous, @Nonnull ApprovalContext context) {
+            this.dangerous = dangerous;
+            this.context = context;
+        }
+    }
+
+    private transient final ConcurrentMap<String,Rejection> rejections = new ConcurrentHashMap<String,Rejection>();
+
+    /** Whether a {@link #foldRejections} has been scheduled but not yet begun. */
+    private transient final AtomicBoolean rejectionsScheduled = new AtomicBoolean();
+
+    /**
+     * Adds signatures buffered by {@link #accessRejected} to {@link #pendingSignatures}.
+     * Called before anything else reads or changes pending signatures, so they reflect all rejections so far.
+     */
+    private synchronized void foldRejections() {
+        rejectionsScheduled.set(false);
+        if (rejections.isEmpty()) {
+            return;
+        }
+        int dropped = 0;
+        for (Iterator<Map.Entry<String,Rejection>> it = rejections.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String,Rejection> entry = it.next();
+            it.remove();
+            String signature = entry.getKey();
+            Rejection r = entry.getValue();
+            LOG.log(Level.FINE, "{0} rejected {1} times", new Object[] {signature, r.count.get()});
+            if (pendingSignatures.size() >= MAX_PENDING_SIGNATURES && !pendingSignatures.contains(new PendingSignature(signature, false, ApprovalContext.create()))) {
+                dropped++;
+                continue;
+            }
+            ApprovalContext context = r.context;
+            if (context == null) { // should not happen, but losing the rest of this pass would be worse
+                context = ApprovalContext.create();
+            }
+            change(false, ApprovalJournal.Op.PENDING_SIGNATURE, signature, String.valueOf(r.dangerous), context.getUser(), context.getItemName(), context.getKey());
+        }
+        if (dropped > 0) {
+            LOG.log(Level.WARNING, "Not recording {0} more rejected signatures since there are already {1} pending approval", new Object[] {dropped, pendingSignatures.size()});
+        }
+    }
+
     @Restricted(NoExternalUse.class) // Jelly, implementation
     public synchronized String[] getApprovedSignatures() {
         return approvedSignatures.toArray(new String[approvedSignatures.size()]);
@@ -656,16 +1014,35 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
 
     @Restricted(NoExternalUse.class) // implementation
     @Extension public static final class ApprovedWhitelist extends ProxyWhitelist {
+        /** Updated in place, so that approving a signature need not {@link #reset} this or anything wrapping it. */
+        private final MutableWhitelist unrestricted, restricted;
         public ApprovedWhitelist() throws IOException {
+            this(new MutableWhitelist(), new MutableWhitelist());
+        }
+        private ApprovedWhitelist(MutableWhitelist unrestricted, MutableWhitelist restricted) throws IOException {
+            super(new AclAwareWhitelist(unrestricted, restricted));
+            this.unrestricted = unrestricted;
+            this.restricted = restricted;
             reconfigure();
         }
         String[][] reconfigure() throws IOException {
             ScriptApproval instance = ScriptApproval.get();
             synchronized (instance) {
-                reset(Collections.singleton(new AclAwareWhitelist(new StaticWhitelist(instance.approvedSignatures), new StaticWhitelist(instance.aclApprovedSignatures))));
-                return new String[][] {instance.getApprovedSignatures(), instance.getAclApprovedSignatures(), instance.getDangerousApprovedSignatures()};
+                unrestricted.replaceAll(instance.approvedSignatures);
+                restricted.replaceAll(instance.aclApprovedSignatures);
+                return instance.signatureLists();
             }
         }
+        /** Adds newly approved signatures, leaving the others alone. */
+        void approved(boolean acl, String... signatures) throws IOException {
+            for (String signature : signatures) {
+                (acl ? restricted : unrestricted).add(signature);
+            }
+        }
+    }
+
+    private synchronized String[][] signatureLists() {
+        return new String[][] {getApprovedSignatures(), getAclApprovedSignatures(), getDangerousApprovedSignatures()};
     }
 
     @Override public String getIconFileName() {
@@ -689,20 +1066,413 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
         return new XmlFile(XSTREAM2, new File(jenkins.getRootDir(), getUrlName() + ".xml"));
     }
 
+    @CheckForNull
+    private File getJournalFile() {
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return null;
+        }
+        return new File(jenkins.getRootDir(), getUrlName() + ".journal");
+    }
+
     private synchronized void load() throws IOException {
         final XmlFile xml = getConfigFile();
-        if (xml != null && xml.exists()) {
+        if (xml != null && xml.exists() && !read(xml.getFile())) {
             xml.unmarshal(this);
         }
     }
 
-    @Override public synchronized void save() throws IOException {
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Reads the configuration file as a stream, filling in the live collections directly rather than reflectively via {@link #XSTREAM2}.
+     * Only understands the format written by current versions.
+     * @return false if the file contains anything else, such as an XStream reference, in which case nothing has been changed
+     */
+    private boolean read(File file) throws IOException {
+        List<String> scriptHashes = new ArrayList<String>();
+        List<String> signatures = new ArrayList<String>();
+        List<String> aclSignatures = new ArrayList<String>();
+        List<Map<String,String>> classpath = new ArrayList<Map<String,String>>();
+        List<Map<String,String>> scripts = new ArrayList<Map<String,String>>();
+        List<Map<String,String>> pendingSignatureFields = new ArrayList<Map<String,String>>();
+        List<Map<String,String>> pendingClasspath = new ArrayList<Map<String,String>>();
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            XMLStreamReader r = XML_INPUT_FACTORY.createXMLStreamReader(is);
+            try {
+                r.nextTag();
+                if (!r.getLocalName().equals("scriptApproval")) {
+                    return false;
+                }
+                for (int i = 0; i < r.getAttributeCount(); i++) {
+                    if (!r.getAttributeLocalName(i).equals("plugin")) {
+                        return false;
+                    }
+                }
+                while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (r.getAttributeCount() > 0) {
+                        return false;
+                    }
+                    String field = r.getLocalName();
+                    boolean ok;
+                    if (field.equals("approvedScriptHashes")) {
+                        ok = readStrings(r, scriptHashes);
+                    } else if (field.equals("approvedSignatures")) {
+                        ok = readStrings(r, signatures);
+                    } else if (field.equals("aclApprovedSignatures")) {
+                        ok = readStrings(r, aclSignatures);
+                    } else if (field.equals("approvedClasspathEntries")) {
+                        ok = readObjects(r, "approvedClasspathEntry", classpath);
+                    } else if (field.equals("pendingScripts")) {
+                        ok = readObjects(r, "pendingScript", scripts);
+                    } else if (field.equals("pendingSignatures")) {
+                        ok = readObjects(r, "pendingSignature", pendingSignatureFields);
+                    } else if (field.equals("pendingClasspathEntries")) {
+                        ok = readObjects(r, "pendingClasspathEntry", pendingClasspath);
+                    } else {
+                        ok = false;
+                    }
+                    if (!ok) {
+                        return false;
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException x) {
+            LOG.log(Level.FINE, "Falling back to XStream to read " + file, x);
+            return false;
+        } finally {
+            is.close();
+        }
+        List<ApprovedClasspathEntry> approvedClasspathRead = new ArrayList<ApprovedClasspathEntry>();
+        List<PendingScript> pendingScriptsRead = new ArrayList<PendingScript>();
+        List<PendingSignature> pendingSignaturesRead = new ArrayList<PendingSignature>();
+        List<PendingClasspathEntry> pendingClasspathRead = new ArrayList<PendingClasspathEntry>();
+        try {
+            for (Map<String,String> fields : classpath) {
+                approvedClasspathRead.add(new ApprovedClasspathEntry(required(fields, "hash"), new URL(required(fields, "url"))));
+            }
+            for (Map<String,String> fields : scripts) {
+                pendingScriptsRead.add(new PendingScript(required(fields, "script"), required(fields, "language"), readContext(fields)));
+            }
+            for (Map<String,String> fields : pendingSignatureFields) {
+                pendingSignaturesRead.add(new PendingSignature(required(fields, "signature"), Boolean.parseBoolean(fields.get("dangerous")), readContext(fields)));
+            }
+            for (Map<String,String> fields : pendingClasspath) {
+                pendingClasspathRead.add(new PendingClasspathEntry(required(fields, "hash"), new URL(required(fields, "url")), readContext(fields)));
+            }
+        } catch (MalformedURLException x) {
+            LOG.log(Level.FINE, "Falling back to XStream to read " + file, x);
+            return false;
+        } catch (IllegalArgumentException x) {
+            LOG.log(Level.FINE, "Falling back to XStream to read " + file, x);
+            return false;
+        }
+        for (String hash : scriptHashes) {
+            if (!approvedScripts.add(hash)) {
+                LOG.log(Level.WARNING, "Ignoring malformed approved script hash {0}", hash);
+            }
+        }
+        approvedSignatures.addAll(signatures);
+        aclApprovedSignatures = new TreeSet<String>(aclSignatures);
+        approvedClasspath.addAll(approvedClasspathRead);
+        pendingScripts.addAll(pendingScriptsRead);
+        pendingSignatures.addAll(pendingSignaturesRead);
+        pendingClasspathEntries = new TreeSet<PendingClasspathEntry>(pendingClasspathRead);
+        return true;
+    }
+
+    /** Reads {@code <string>} elements up to the end of the current element. */
+    private static boolean readStrings(XMLStreamReader r, List<String> into) throws XMLStreamException {
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!r.getLocalName().equals("string") || r.getAttributeCount() > 0) {
+                return false;
+            }
+            into.add(r.getElementText());
+        }
+        return true;
+    }
+
+    /** Reads the fields of each of a list of objects, up to the end of the current element. */
+    private static boolean readObjects(XMLStreamReader r, String element, List<Map<String,String>> into) throws XMLStreamException {
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!r.getLocalName().equals(element) || r.getAttributeCount() > 0) {
+                return false;
+            }
+            Map<String,String> fields = new HashMap<String,String>();
+            if (!readFields(r, "", fields)) {
+                return false;
+            }
+            into.add(fields);
+        }
+        return true;
+    }
+
+    /** Reads simple fields up to the end of the current element, flattening those of a {@link PendingThing#context} as {@code context.user} and so on. */
+    private static boolean readFields(XMLStreamReader r, String prefix, Map<String,String> fields) throws XMLStreamException {
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (r.getAttributeCount() > 0) {
+                return false;
+            }
+            String name = r.getLocalName();
+            if (prefix.isEmpty() && name.equals("context")) {
+                fields.put(name, "");
+                if (!readFields(r, "context.", fields)) {
+                    return false;
+                }
+            } else {
+                fields.put(prefix + name, r.getElementText());
+            }
+        }
+        return true;
+    }
+
+    private static String required(Map<String,String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("missing " + name);
+        }
+        return value;
+    }
+
+    /** Like {@link PendingThing#readResolve}. */
+    private static ApprovalContext readContext(Map<String,String> fields) {
+        String user = fields.get("user");
+        if (user != null) {
+            return ApprovalContext.create().withUser(user);
+        }
+        return ApprovalContext.of(fields.get("context.user"), fields.get("context.item"), fields.get("context.key"));
+    }
+
+    /**
+     * Writes the configuration to disk immediately, along with any changes not yet written.
+     * Changes made by this class itself are normally appended to a journal,
+     * which is folded into the configuration file once it grows large, or on shutdown.
+     */
+    @Override public void save() throws IOException {
+        synchronized (this) {
+            dirty = true;
+        }
+        flush();
+    }
+
+    /**
+     * How long to wait before writing the configuration in full, in milliseconds, so that a burst of changes is written only once.
+     */
+    static /* not final, for tests */ long SAVE_DELAY = Long.getLong(ScriptApproval.class.getName() + ".SAVE_DELAY", 1000);
+
+    /** Size in bytes beyond which the journal is folded into the configuration file. */
+    static /* not final, for tests */ long JOURNAL_COMPACTION_SIZE = Long.getLong(ScriptApproval.class.getName() + ".JOURNAL_COMPACTION_SIZE", 1024 * 1024);
+
+    /** Records changes made since the configuration was last written, or null if Jenkins was not running. */
+    private transient final ApprovalJournal journal;
+
+    /** Whether there are changes which must be written by {@link #flush}, rather than only appearing in the journal. */
+    private transient boolean dirty;
+
+    /** Whether a {@link #flush} has been scheduled but not yet begun. */
+    private transient boolean flushScheduled;
+
+    /** Held while writing the configuration file, so that snapshots are written in order; acquired before {@code this}. */
+    private transient final Object writeLock = new Object();
+
+    /** Marks the configuration as changed, and schedules it to be written in full unless that is already pending. */
+    private synchronized void saveLater() {
+        dirty = true;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            Timer.get().schedule(new Runnable() {
+                @Override public void run() {
+                    try {
+                        flush();
+                    } catch (IOException x) {
+                        LOG.log(Level.WARNING, null, x);
+                    }
+                }
+            }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the configuration in full if anything has changed, and then discards the journal.
+     * Only copying the configuration happens while holding the monitor; serializing it does not.
+     */
+    void flush() throws IOException {
+        synchronized (writeLock) {
+            ScriptApproval snapshot;
+            synchronized (this) {
+                flushScheduled = false;
+                foldRejections();
+                if (!dirty && (journal == null || journal.isEmpty())) {
+                    return;
+                }
+                dirty = false;
+                snapshot = new ScriptApproval(this);
+                try {
+                    if (journal != null) {
+                        // Later changes go to a fresh journal, which must survive this write.
+                        journal.rotate();
+                    }
+                } catch (IOException x) {
+                    dirty = true;
+                    throw x;
+                }
+            }
+            try {
+                write(snapshot);
+            } catch (IOException x) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                throw x;
+            }
+            if (journal != null) {
+                journal.deleteRotated();
+            }
+        }
+    }
+
+    /**
+     * Makes a change and records it in the journal, or failing that schedules the configuration to be written in full.
+     * Call while holding the monitor.
+     * @param durable whether to wait for the record to reach the disk, as for decisions by an administrator
+     * @return whether anything changed
+     */
+    private boolean change(boolean durable, ApprovalJournal.Op op, String... args) {
+        if (!apply(op, args)) {
+            return false;
+        }
+        if (journal != null) {
+            try {
+                journal.append(durable, op, args);
+                if (journal.size() > JOURNAL_COMPACTION_SIZE) {
+                    saveLater();
+                }
+                return true;
+            } catch (IOException x) {
+                LOG.log(Level.WARNING, "Unable to record " + op + "; will write the configuration in full", x);
+            }
+        }
+        saveLater();
+        return true;
+    }
+
+    /** Waits for changes recorded with {@code durable} false to reach the disk, as at the end of a batch. Call while holding the monitor. */
+    private void syncJournal() {
+        if (journal != null) {
+            try {
+                journal.force();
+            } catch (IOException x) {
+                LOG.log(Level.WARNING, "Unable to sync journal; will write the configuration in full", x);
+                saveLater();
+            }
+        }
+    }
+
+    /**
+     * Makes a change, either on behalf of a caller or when replaying the journal.
+     * Does no access checks and does not save anything.
+     * Call while holding the monitor.
+     * @return whether anything changed
+     */
+    private boolean apply(ApprovalJournal.Op op, String... args) {
+        boolean changed;
+        switch (op) {
+        case PREAPPROVE_SCRIPT:
+            return approvedScripts.add(args[0]);
+        case APPROVE_SCRIPT:
+            changed = approvedScripts.add(args[0]);
+            return removePendingScript(args[0]) || changed;
+        case DENY_SCRIPT:
+            changed = approvedScripts.remove(args[0]);
+            return removePendingScript(args[0]) || changed;
+        case CLEAR_APPROVED_SCRIPTS:
+            changed = approvedScripts.size() > 0;
+            approvedScripts.clear();
+            return changed;
+        case PENDING_SCRIPT:
+            ApprovalContext context = ApprovalContext.of(args[2], args[3], args[4]);
+            changed = false;
+            String key = context.getKey();
+            if (key != null) {
+                Iterator<PendingScript> it = pendingScripts.iterator();
+                while (it.hasNext()) {
+                    PendingScript ps = it.next();
+                    if (key.equals(ps.getContext().getKey())) {
+                        it.remove();
+                        pendingScriptsByHash.remove(ps.getHash());
+                        changed = true;
+                    }
+                }
+            }
+            PendingScript ps = new PendingScript(args[0], args[1], context);
+            if (pendingScripts.add(ps)) {
+                pendingScriptsByHash.put(ps.getHash(), ps);
+                changed = true;
+            }
+            return changed;
+        case APPROVE_SIGNATURE:
+            changed = pendingSignatures.remove(new PendingSignature(args[0], false, ApprovalContext.create()));
+            return approvedSignatures.add(args[0]) || changed;
+        case ACL_APPROVE_SIGNATURE:
+            changed = pendingSignatures.remove(new PendingSignature(args[0], false, ApprovalContext.create()));
+            return aclApprovedSignatures.add(args[0]) || changed;
+        case DENY_SIGNATURE:
+            return pendingSignatures.remove(new PendingSignature(args[0], false, ApprovalContext.create()));
+        case CLEAR_APPROVED_SIGNATURES:
+            changed = !approvedSignatures.isEmpty() || !aclApprovedSignatures.isEmpty();
+            approvedSignatures.clear();
+            aclApprovedSignatures.clear();
+            return changed;
+        case PENDING_SIGNATURE:
+            return pendingSignatures.add(new PendingSignature(args[0], Boolean.parseBoolean(args[1]), ApprovalContext.of(args[2], args[3], args[4])));
+        case APPROVE_CLASSPATH:
+            changed = pendingClasspathEntries.remove(PendingClasspathEntry.searchKeyFor(args[0]));
+            return approvedClasspath.add(new ApprovedClasspathEntry(args[0], toURL(args[1]))) || changed;
+        case PENDING_CLASSPATH:
+            return pendingClasspathEntries.add(new PendingClasspathEntry(args[0], toURL(args[1]), ApprovalContext.of(args[2], args[3], args[4])));
+        case DENY_CLASSPATH:
+            return pendingClasspathEntries.remove(PendingClasspathEntry.searchKeyFor(args[0]));
+        case DENY_APPROVED_CLASSPATH:
+            return approvedClasspath.remove(new ApprovedClasspathEntry(args[0], null));
+        case CLEAR_APPROVED_CLASSPATH:
+            changed = !approvedClasspath.isEmpty();
+            approvedClasspath.clear();
+            return changed;
+        default:
+            throw new AssertionError(op);
+        }
+    }
+
+    private static URL toURL(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException x) {
+            throw new IllegalArgumentException(x);
+        }
+    }
+
+    private void write(ScriptApproval snapshot) throws IOException {
         final XmlFile configFile = getConfigFile();
         if (configFile == null) {
             throw new IOException("Cannot get config file. Probably, Jenkins is not ready");
         }
-        configFile.write(this);
-        // TBD: outside synch block: SaveableListener.fireOnChange(this, getConfigFile());
+        configFile.write(snapshot);
+        // TBD: SaveableListener.fireOnChange(this, getConfigFile());
+    }
+
+    @Restricted(DoNotUse.class)
+    @Terminator public static void flushOnShutdown() throws IOException {
+        ScriptApproval instance = ExtensionList.lookup(RootAction.class).get(ScriptApproval.class);
+        if (instance != null) {
+            instance.flush();
+        }
     }
 
     @Restricted(NoExternalUse.class) // for use from Jelly
@@ -712,16 +1482,27 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
 
     @Restricted(NoExternalUse.class) // for use from AJAX
     @JavaScriptMethod public void approveScript(String hash) throws IOException {
+        approveScripts(hash);
+    }
+
+    /**
+     * Approves several scripts at once, as if by the administrator, writing the change once
+     * and notifying each {@link ApprovalListener} once.
+     * @param hashes opaque tokens as in {@link UnapprovedUsageException#getHash}
+     */
+    @JavaScriptMethod public void approveScripts(String... hashes) throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
         synchronized (this) {
-            approvedScriptHashes.add(hash);
-            removePendingScript(hash);
-            save();
+            for (String hash : hashes) {
+                change(false, ApprovalJournal.Op.APPROVE_SCRIPT, hash);
+            }
+            syncJournal();
         }
+        List<String> approved = Collections.unmodifiableList(Arrays.asList(hashes));
         SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
         try {
             for (ApprovalListener listener : ExtensionList.lookup(ApprovalListener.class)) {
-                listener.onApproved(hash);
+                listener.onApproved(approved);
             }
         } finally {
             SecurityContextHolder.setContext(orig);
@@ -731,30 +1512,23 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
     @Restricted(NoExternalUse.class) // for use from AJAX
     @JavaScriptMethod public synchronized void denyScript(String hash) throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        approvedScriptHashes.remove(hash);
-        removePendingScript(hash);
-        save();
+        change(true, ApprovalJournal.Op.DENY_SCRIPT, hash);
     }
 
-    private synchronized void removePendingScript(String hash) {
-        Iterator<PendingScript> it = pendingScripts.iterator();
-        while (it.hasNext()) {
-            if (it.next().getHash().equals(hash)) {
-                it.remove();
-                break;
-            }
-        }
+    private synchronized boolean removePendingScript(String hash) {
+        PendingScript ps = pendingScriptsByHash.remove(hash);
+        return ps != null && pendingScripts.remove(ps);
     }
 
     @Restricted(NoExternalUse.class) // for use from AJAX
     @JavaScriptMethod public synchronized void clearApprovedScripts() throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        approvedScriptHashes.clear();
-        save();
+        change(true, ApprovalJournal.Op.CLEAR_APPROVED_SCRIPTS);
     }
 
     @Restricted(NoExternalUse.class) // for use from Jelly
     public Set<PendingSignature> getPendingSignatures() {
+        foldRejections();
         return pendingSignatures;
     }
 
@@ -769,44 +1543,64 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
     }
 
     @Restricted(NoExternalUse.class) // for use from AJAX
-    @JavaScriptMethod public synchronized String[][] approveSignature(String signature) throws IOException {
-        Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        pendingSignatures.remove(new PendingSignature(signature, false, ApprovalContext.create()));
-        approvedSignatures.add(signature);
-        save();
-        return reconfigure();
+    @JavaScriptMethod public String[][] approveSignature(String signature) throws IOException {
+        return approveSignatures(signature);
     }
 
     @Restricted(NoExternalUse.class) // for use from AJAX
-    @JavaScriptMethod public synchronized String[][] aclApproveSignature(String signature) throws IOException {
+    @JavaScriptMethod public String[][] aclApproveSignature(String signature) throws IOException {
+        return aclApproveSignatures(signature);
+    }
+
+    /**
+     * Approves several signatures at once, writing the change once and updating the whitelist once.
+     * @param signatures signatures in {@link StaticWhitelist} format
+     * @return the approved, ACL-approved, and dangerous signatures, as for the UI
+     */
+    @JavaScriptMethod public synchronized String[][] approveSignatures(String... signatures) throws IOException {
+        return approveSignatures(ApprovalJournal.Op.APPROVE_SIGNATURE, signatures);
+    }
+
+    /**
+     * Like {@link #approveSignatures} but approves the signatures only for ACL-aware use.
+     */
+    @JavaScriptMethod public synchronized String[][] aclApproveSignatures(String... signatures) throws IOException {
+        return approveSignatures(ApprovalJournal.Op.ACL_APPROVE_SIGNATURE, signatures);
+    }
+
+    private synchronized String[][] approveSignatures(ApprovalJournal.Op op, String... signatures) throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        pendingSignatures.remove(new PendingSignature(signature, false, ApprovalContext.create()));
-        aclApprovedSignatures.add(signature);
-        save();
-        return reconfigure();
+        foldRejections();
+        for (String signature : signatures) {
+            change(false, op, signature);
+        }
+        syncJournal();
+        final ApprovedWhitelist awl = ExtensionList.lookup(Whitelist.class).get(ApprovedWhitelist.class);
+        if (awl != null) {
+            awl.approved(op == ApprovalJournal.Op.ACL_APPROVE_SIGNATURE, signatures);
+        }
+        return signatureLists();
     }
 
     @Restricted(NoExternalUse.class) // for use from AJAX
     @JavaScriptMethod public synchronized void denySignature(String signature) throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        pendingSignatures.remove(new PendingSignature(signature, false, ApprovalContext.create()));
-        save();
+        foldRejections();
+        change(true, ApprovalJournal.Op.DENY_SIGNATURE, signature);
     }
 
     // TODO nicer would be to allow the user to actually edit the list directly (with syntax checks)
     @Restricted(NoExternalUse.class) // for use from AJAX
     @JavaScriptMethod public synchronized String[][] clearApprovedSignatures() throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        approvedSignatures.clear();
-        aclApprovedSignatures.clear();
-        save();
+        change(true, ApprovalJournal.Op.CLEAR_APPROVED_SIGNATURES);
         // Should be [[], []] but still returning it for consistency with approve methods.
         return reconfigure();
     }
 
     @Restricted(NoExternalUse.class)
     public synchronized List<ApprovedClasspathEntry> getApprovedClasspathEntries() {
-        ArrayList<ApprovedClasspathEntry> r = new ArrayList<ApprovedClasspathEntry>(approvedClasspathEntries);
+        ArrayList<ApprovedClasspathEntry> r = new ArrayList<ApprovedClasspathEntry>(approvedClasspath);
         Collections.sort(r, new Comparator<ApprovedClasspathEntry>() {
             @Override public int compare(ApprovedClasspathEntry o1, ApprovedClasspathEntry o2) {
                 return o1.url.toString().compareTo(o2.url.toString());
@@ -843,22 +1637,37 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
     @Restricted(NoExternalUse.class) // for use from AJAX
     @JavaScriptMethod
     public JSON approveClasspathEntry(String hash) throws IOException {
+        return approveClasspathEntries(hash);
+    }
+
+    /**
+     * Approves several pending classpath entries at once, writing the change once
+     * and notifying each {@link ApprovalListener} once.
+     * Hashes which are not pending are ignored.
+     * @param hashes opaque tokens as in {@link UnapprovedClasspathException#getHash}
+     * @return the pending and approved entries, as for the UI
+     */
+    @JavaScriptMethod
+    public JSON approveClasspathEntries(String... hashes) throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        URL url = null;
+        Map<String,URL> approved = new LinkedHashMap<String,URL>();
         synchronized (this) {
-            final PendingClasspathEntry cp = getPendingClasspathEntry(hash);
-            if (cp != null) {
-                pendingClasspathEntries.remove(cp);
-                url = cp.getURL();
-                approvedClasspathEntries.add(new ApprovedClasspathEntry(hash, url));
-                save();
+            for (String hash : hashes) {
+                final PendingClasspathEntry cp = getPendingClasspathEntry(hash);
+                if (cp != null) {
+                    URL url = cp.getURL();
+                    change(false, ApprovalJournal.Op.APPROVE_CLASSPATH, hash, url.toString());
+                    approved.put(hash, url);
+                }
             }
+            syncJournal();
         }
-        if (url != null) {
+        if (!approved.isEmpty()) {
+            approved = Collections.unmodifiableMap(approved);
             SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
             try {
                 for (ApprovalListener listener : ExtensionList.lookup(ApprovalListener.class)) {
-                    listener.onApprovedClasspathEntry(hash, url);
+                    listener.onApprovedClasspathEntries(approved);
                 }
             } finally {
                 SecurityContextHolder.setContext(orig);
@@ -871,10 +1680,8 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
     @JavaScriptMethod
     public JSON denyClasspathEntry(String hash) throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        PendingClasspathEntry cp = getPendingClasspathEntry(hash);
-        if (cp != null) {
-            pendingClasspathEntries.remove(cp);
-            save();
+        synchronized (this) {
+            change(true, ApprovalJournal.Op.DENY_CLASSPATH, hash);
         }
         return getClasspathRenderInfo();
     }
@@ -883,8 +1690,8 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
     @JavaScriptMethod
     public JSON denyApprovedClasspathEntry(String hash) throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        if (approvedClasspathEntries.remove(new ApprovedClasspathEntry(hash, null))) {
-            save();
+        synchronized (this) {
+            change(true, ApprovalJournal.Op.DENY_APPROVED_CLASSPATH, hash);
         }
         return getClasspathRenderInfo();
     }
@@ -893,8 +1700,7 @@ import org.kohsuke.stapler.bind.JavaScriptMethod;
     @JavaScriptMethod
     public synchronized JSON clearApprovedClasspathEntries() throws IOException {
         Jenkins.getInstance().checkPermission(Jenkins.RUN_SCRIPTS);
-        approvedClasspathEntries.clear();
-        save();
+        change(true, ApprovalJournal.Op.CLEAR_APPROVED_CLASSPATH);
         return getClasspathRenderInfo();
     }
 
@@ -75,6 +75,43 @@ public class GroovyCallSiteSelectorTest {
         public static void m1(long x) {}
         public static void m2(int x) {}
         public static void m2(long x) {}
+        public void m3(int x) {}
+        public void m3(long x) {}
+        public void m4(Object x) {}
+        public void m4(String x) {}
+    }
+
+    @Test public void cachedCallShapes() throws Exception {
+        Primitives receiver = new Primitives();
+        for (int i = 0; i < 2; i++) {
+            assertEquals(Primitives.class.getMethod("m3", int.class), GroovyCallSiteSelector.method(receiver, "m3", new Object[] {99L}));
+            assertEquals(Primitives.class.getMethod("m3", long.class), GroovyCallSiteSelector.method(receiver, "m3", new Object[] {Long.MAX_VALUE}));
+            assertEquals(Primitives.class.getMethod("m4", String.class), GroovyCallSiteSelector.method(receiver, "m4", new Object[] {null}));
+            assertEquals(Primitives.class.getMethod("m4", Object.class), GroovyCallSiteSelector.method(receiver, "m4", new Object[] {new Object()}));
+            assertNull(GroovyCallSiteSelector.method(receiver, "m4", new Object[] {null, null}));
+        }
+        // Only m4(null) and m4(Object): a Long argument may be narrowed depending on its value, and misses are not cached.
+        assertEquals(2, GroovyCallSiteSelector.cachedCallShapes(Primitives.class));
+        assertNull(GroovyCallSiteSelector.CallShape.of(Primitives.class, "m3", new Object[] {99L}));
+    }
+
+    public static class Misses {}
+
+    @Test public void missesNotCached() throws Exception {
+        Misses receiver = new Misses();
+        for (int i = 0; i < 100; i++) {
+            assertNull(GroovyCallSiteSelector.method(receiver, "nonexistent" + i, new Object[0]));
+        }
+        assertEquals(0, GroovyCallSiteSelector.cachedCallShapes(Misses.class));
+        int max = GroovyCallSiteSelector.MAX_CALL_SHAPES;
+        try {
+            GroovyCallSiteSelector.MAX_CALL_SHAPES = 1;
+            assertEquals(Object.class.getMethod("toString"), GroovyCallSiteSelector.method(receiver, "toString", new Object[0]));
+            assertEquals(Object.class.getMethod("hashCode"), GroovyCallSiteSelector.method(receiver, "hashCode", new Object[0]));
+            assertEquals(1, GroovyCallSiteSelector.cachedCallShapes(Misses.class));
+        } finally {
+            GroovyCallSiteSelector.MAX_CALL_SHAPES = max;
+        }
     }
 
     @Test public void staticMethodsCannotBeOverridden() throws Exception {
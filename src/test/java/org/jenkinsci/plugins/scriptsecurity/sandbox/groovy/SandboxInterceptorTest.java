@@ -48,12 +48,14 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.runtime.DefaultGroovyMethods;
 import org.codehaus.groovy.runtime.GStringImpl;
 import org.codehaus.groovy.runtime.InvokerHelper;
 import static org.hamcrest.Matchers.is;
@@ -242,6 +244,17 @@ public class SandboxInterceptorTest {
         assertEvaluate(new StaticWhitelist("new " + clazz, "method " + clazz + " getProp5", "field " + clazz + " prop5"), "EDITED", "def c = new " + clazz + "(); c.@prop5 = 'edited'; c.prop5");
     }
 
+    @Test public void settersByValueType() throws Exception {
+        String clazz = Setters.class.getName();
+        assertRejected(new StaticWhitelist("new " + clazz, "method " + clazz + " setValue java.lang.String"), "method " + clazz + " setValue int", "def s = new " + clazz + "(); s.value = 'x'; s.value = 1");
+        assertRejected(new StaticWhitelist("new " + clazz, "method " + clazz + " setValue int"), "method " + clazz + " setValue java.lang.String", "def s = new " + clazz + "(); s.value = 1; s.value = 'x'");
+    }
+
+    public static final class Setters {
+        public void setValue(String value) {}
+        public void setValue(int value) {}
+    }
+
     public static final class Clazz {
         static boolean flag;
         @Whitelisted public Clazz() {}
@@ -357,6 +370,14 @@ public class SandboxInterceptorTest {
         // TODO check DefaultGroovyStaticMethods also (though there are few useful & safe calls there)
     }
 
+    public static final class Inspectable {}
+
+    @Test public void dgmMethodsCachedByReceiverType() throws Exception {
+        String clazz = Inspectable.class.getName();
+        assertEvaluate(new ProxyWhitelist(new GenericWhitelist(), new StaticWhitelist("new " + clazz, "staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods inspect java.lang.Object")), true, "def r = new " + clazz + "(); r.inspect(); r.inspect().length() > 0");
+        assertEquals(1, SandboxInterceptor.cachedDgmCallShapes(DefaultGroovyMethods.class, Inspectable.class));
+    }
+
     @Test public void whitelistedIrrelevantInsideScript() throws Exception {
         String clazz = Unsafe.class.getName();
         String wl = Whitelisted.class.getName();
@@ -782,6 +803,17 @@ public class SandboxInterceptorTest {
         }
     }
 
+    @Test public void dynamicPropertyNamesNotCached() throws Exception {
+        assertEvaluate(new GenericWhitelist(), 100, "def m = [:]; for (int i = 0; i < 100; i++) {m.\"k$i\" = i; m.\"k$i\"}; m.size()");
+        assertEquals(0, SandboxInterceptor.cachedPropertyAccessors(LinkedHashMap.class));
+        String dynamic = Dynamic.class.getName();
+        String ctor = "new " + dynamic;
+        String getProperty = "method groovy.lang.GroovyObject getProperty java.lang.String";
+        String setProperty = "method groovy.lang.GroovyObject setProperty java.lang.String java.lang.Object";
+        assertEvaluate(new ProxyWhitelist(new GenericWhitelist(), new StaticWhitelist(ctor, getProperty, setProperty)), 99, "def d = new " + dynamic + "(); for (int i = 0; i < 100; i++) {d.\"p$i\" = i}; d.p99");
+        assertEquals(0, SandboxInterceptor.cachedPropertyAccessors(Dynamic.class));
+    }
+
     @Issue("JENKINS-37129")
     @Test public void methodMissingException() throws Exception {
         // test: trying to call a nonexistent method
@@ -42,12 +42,16 @@ import hudson.security.GlobalMatrixAuthorizationStrategy;
 import hudson.security.Permission;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Publisher;
+import hudson.util.FormValidation;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import jenkins.model.Jenkins;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
@@ -769,6 +773,162 @@ public class SecureGroovyScriptTest {
         }
     }
 
+    @Test public void repeatedEvaluation() throws Exception {
+        ClassLoader loader = r.jenkins.getPluginManager().uberClassLoader;
+        SecureGroovyScript sandboxed = new SecureGroovyScript("x + 1", true, null).configuringWithKeyItem();
+        SecureGroovyScript unsandboxed = new SecureGroovyScript("x + 1", false, null).configuringWithKeyItem();
+        for (int x = 0; x < 3; x++) {
+            Binding binding = new Binding();
+            binding.setVariable("x", x);
+            assertEquals(x + 1, sandboxed.evaluate(loader, binding));
+            assertEquals(x + 1, unsandboxed.evaluate(loader, binding));
+        }
+        ScriptApproval.get().clearApprovedScripts();
+        Binding binding = new Binding();
+        binding.setVariable("x", 0);
+        assertEquals(1, sandboxed.evaluate(loader, binding));
+        try {
+            unsandboxed.evaluate(loader, binding);
+            fail("Expecting the approval to be checked again");
+        } catch (UnapprovedUsageException x) {
+            // expected
+        }
+    }
+
+    @Test public void sharedClasspathLoader() throws Exception {
+        ClassLoader loader = r.jenkins.getPluginManager().uberClassLoader;
+        List<ClasspathEntry> classpath = files2entries(getAllJarFiles());
+        SecureGroovyScript first = new SecureGroovyScript("org.jenkinsci.plugins.scriptsecurity.testjar.BuildUtil.class.classLoader", false, classpath).configuringWithKeyItem();
+        SecureGroovyScript second = new SecureGroovyScript("org.jenkinsci.plugins.scriptsecurity.testjar.BuildUtil.classLoader", false, classpath).configuringWithKeyItem();
+        Object shared = first.evaluate(loader, new Binding());
+        assertSame(loader, ((ClassLoader) shared).getParent());
+        assertSame(shared, first.evaluate(loader, new Binding()));
+        assertSame(shared, second.evaluate(loader, new Binding()));
+        long idleTimeout = ClassLoaderPool.IDLE_TIMEOUT;
+        ClassLoaderPool.IDLE_TIMEOUT = 0;
+        try {
+            SecureGroovyScript.classLoaders.sweep();
+        } finally {
+            ClassLoaderPool.IDLE_TIMEOUT = idleTimeout;
+        }
+        assertNotSame(shared, first.evaluate(loader, new Binding()));
+    }
+
+    @Test public void bytecodeCache() throws Exception {
+        BytecodeCache.ENABLED = true;
+        ClassLoader uber = r.jenkins.getPluginManager().uberClassLoader;
+        URLClassLoader unrelated = new URLClassLoader(new URL[0], uber);
+        try {
+            SecureGroovyScript sgs = new SecureGroovyScript("def f = {it + it}; f(x) + 1", true, files2entries(getAllJarFiles())).configuringWithKeyItem();
+            Binding binding = new Binding();
+            binding.setVariable("x", 3);
+            assertEquals(7, sgs.evaluate(uber, binding));
+            File dir = new File(r.jenkins.getRootDir(), "caches/script-security");
+            File[] entries = dir.listFiles();
+            assertEquals(1, entries.length);
+            long length = entries[0].length();
+            // A fresh pooled loader over the same classpath misses the in-memory cache, but finds the same entry.
+            FileUtils.writeStringToFile(entries[0], "corrupt");
+            closeIdleLoaders();
+            assertEquals(7, sgs.evaluate(uber, binding));
+            assertEquals(length, entries[0].length());
+            assertEquals(1, dir.listFiles().length);
+            // Loaders whose contents are unknown are not cached at all.
+            assertEquals(7, new SecureGroovyScript("def f = {it + it}; f(x) + 1", true, null).configuringWithKeyItem().evaluate(unrelated, binding));
+            assertEquals(1, dir.listFiles().length);
+            // Temporary files are not entries, and are only deleted once abandoned.
+            File inFlight = new File(dir, "in-flight.tmp");
+            FileUtils.writeStringToFile(inFlight, "partial");
+            File abandoned = new File(dir, "abandoned.tmp");
+            FileUtils.writeStringToFile(abandoned, "partial");
+            assertTrue(abandoned.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+            new BytecodeCache(dir).cleanup();
+            assertTrue(entries[0].isFile());
+            assertTrue(inFlight.isFile());
+            assertFalse(abandoned.exists());
+        } finally {
+            BytecodeCache.ENABLED = false;
+            unrelated.close();
+        }
+    }
+
+    private static void closeIdleLoaders() {
+        long idleTimeout = ClassLoaderPool.IDLE_TIMEOUT;
+        ClassLoaderPool.IDLE_TIMEOUT = 0;
+        try {
+            SecureGroovyScript.classLoaders.sweep();
+        } finally {
+            ClassLoaderPool.IDLE_TIMEOUT = idleTimeout;
+        }
+    }
+
+    @Test public void precompile() throws Exception {
+        SecureGroovyScript.PRECOMPILE = true;
+        try {
+            ClassLoader loader = r.jenkins.getPluginManager().uberClassLoader;
+            SecureGroovyScript sgs = new SecureGroovyScript("@groovy.transform.Field def x = 1; x + 1", true, null).configuringWithKeyItem();
+            for (int i = 0; i < 100 && !sgs.isCompiled(loader); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(sgs.isCompiled(loader));
+            assertSame(loader, sgs.warmedLoader()); // held by the script itself, not subject to cache eviction
+            assertEquals(2, sgs.evaluate(loader, new Binding()));
+            assertNull(sgs.warmedLoader());
+            assertTrue(sgs.isCompiled(loader));
+        } finally {
+            SecureGroovyScript.PRECOMPILE = false;
+        }
+    }
+
+    @Test public void warmUp() throws Exception {
+        ClassLoader loader = r.jenkins.getPluginManager().uberClassLoader;
+        SecureGroovyScript good = new SecureGroovyScript("'warm' + 'up'", true, null).configuringWithKeyItem();
+        SecureGroovyScript bad = new SecureGroovyScript("def x = ", true, null).configuringWithKeyItem();
+        ScriptWarmUp warmUp = ScriptWarmUp.start();
+        warmUp.await();
+        assertTrue(warmUp.isDone());
+        assertTrue(good.isCompiled(loader));
+        assertFalse(bad.isCompiled(loader));
+        boolean reported = false;
+        for (ScriptWarmUp.Failure failure : warmUp.getFailures()) {
+            reported |= failure.getScript().equals(bad.getScript());
+        }
+        assertTrue(reported);
+        assertEquals(warmUp.getTotal(), warmUp.getCompiled() + warmUp.getSkipped() + warmUp.getFailures().size());
+        assertSame(warmUp, ScriptWarmUp.getLatest());
+    }
+
+    @Test public void warmedClasspathLoader() throws Exception {
+        ClassLoader uber = r.jenkins.getPluginManager().uberClassLoader;
+        SecureGroovyScript sgs = new SecureGroovyScript("org.jenkinsci.plugins.scriptsecurity.testjar.BuildUtil.class.classLoader", false, files2entries(getAllJarFiles())).configuringWithKeyItem();
+        assertTrue(sgs.precompileNow());
+        ClassLoader warmedLoader = sgs.warmedLoader();
+        assertNotNull(warmedLoader);
+        // Still pooled, so used by the first evaluation.
+        assertSame(warmedLoader, sgs.evaluate(uber, new Binding()));
+        assertNull(sgs.warmedLoader());
+        // The warmed class holds no lease, so the pool may close its idle loader; the class is then forgotten.
+        SecureGroovyScript other = new SecureGroovyScript("org.jenkinsci.plugins.scriptsecurity.testjar.BuildUtil.class.classLoader // other", false, files2entries(getAllJarFiles())).configuringWithKeyItem();
+        assertTrue(other.precompileNow());
+        warmedLoader = other.warmedLoader();
+        assertNotNull(warmedLoader);
+        closeIdleLoaders();
+        assertEquals(0, SecureGroovyScript.classLoaders.size());
+        assertNull(other.warmedLoader());
+        assertNotSame(warmedLoader, other.evaluate(uber, new Binding()));
+    }
+
+    @Test public void checkScript() throws Exception {
+        SecureGroovyScript.DescriptorImpl d = r.jenkins.getDescriptorByType(SecureGroovyScript.DescriptorImpl.class);
+        assertEquals(FormValidation.Kind.OK, d.doCheckScript("1 + 1", true).kind);
+        for (int i = 0; i < 2; i++) { // second time from the cache
+            FormValidation v = d.doCheckScript("new NoSuchClass()", true);
+            assertEquals(FormValidation.Kind.ERROR, v.kind);
+            assertTrue(v.getMessage(), v.getMessage().contains("unable to resolve class NoSuchClass"));
+        }
+        assertEquals(FormValidation.Kind.ERROR, d.doCheckScript("def x = ", true).kind);
+    }
+
     @Test @Issue("JENKINS-25348")
     public void testSandboxClassResolution() throws Exception {
         File jar = Which.jarFile(Checker.class);
@@ -25,6 +25,7 @@
 package org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists;
 
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -35,6 +36,10 @@ public class EnumeratingWhitelistTest {
 
     public static class C {
         public void m(Object[] args) {}
+        public void m(String arg) {}
+        public void other() {}
+        public int f;
+        public static int s;
     }
 
     @Test public void matches() throws Exception {
@@ -45,6 +50,22 @@ public class EnumeratingWhitelistTest {
         assertFalse(new EnumeratingWhitelist.MethodSignature(C.class, "m", String[].class).matches(m));
     }
 
+    @Test public void permits() throws Exception {
+        String c = C.class.getName();
+        StaticWhitelist wl = new StaticWhitelist("method " + c + " m java.lang.Object[]", "field " + c + " *", "new " + c);
+        assertTrue(wl.permitsMethod(C.class.getMethod("m", Object[].class), new C(), new Object[] {new Object[0]}));
+        assertFalse(wl.permitsMethod(C.class.getMethod("m", String.class), new C(), new Object[] {"x"}));
+        assertFalse(wl.permitsMethod(C.class.getMethod("other"), new C(), new Object[0]));
+        assertFalse(wl.permitsStaticMethod(C.class.getMethod("m", Object[].class), new Object[] {new Object[0]}));
+        assertTrue(wl.permitsFieldGet(C.class.getField("f"), new C()));
+        assertFalse(wl.permitsStaticFieldGet(C.class.getField("s")));
+        assertTrue(wl.permitsConstructor(C.class.getConstructor(), new Object[0]));
+        wl = new StaticWhitelist("method " + c + " * java.lang.String");
+        assertTrue(wl.permitsMethod(C.class.getMethod("m", String.class), new C(), new Object[] {"x"}));
+        assertFalse(wl.permitsMethod(C.class.getMethod("m", Object[].class), new C(), new Object[] {new Object[0]}));
+        assertFalse(wl.permitsMethod(C.class.getMethod("other"), new C(), new Object[0]));
+    }
+
     @Test public void getName() {
         assertEquals("java.lang.Object", EnumeratingWhitelist.getName(Object.class));
         assertEquals("java.lang.Object[]", EnumeratingWhitelist.getName(Object[].class));
@@ -65,4 +86,13 @@ public class EnumeratingWhitelistTest {
         assertTrue(new EnumeratingWhitelist.MethodSignature(Map.class, "size").exists());
     }
 
+    @Test public void supertypes() throws Exception {
+        assertEquals(Arrays.<Class<?>>asList(Object.class, I.class, A.class, J.class, B.class), Arrays.asList(EnumeratingWhitelist.supertypes(B.class)));
+        assertSame(EnumeratingWhitelist.supertypes(B.class), EnumeratingWhitelist.supertypes(B.class));
+    }
+    private interface I {}
+    private interface J extends I {}
+    private static class A implements I {}
+    private static class B extends A implements J {}
+
 }
@@ -26,6 +26,7 @@ package org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists;
 
 import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
 import java.io.StringReader;
+import java.lang.reflect.Method;
 import java.util.Collections;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -45,4 +46,41 @@ public class ProxyWhitelistTest {
         assertFalse(pw2.permitsMethod(Object.class.getMethod("hashCode"), "x", new Object[0]));
     }
 
+    @Test public void onlySignatureVerdictsCached() throws Exception {
+        final boolean[] allow = {true};
+        ProxyWhitelist pw = new ProxyWhitelist(new StaticWhitelist("method java.lang.String length"), new AbstractWhitelist() {
+            @Override public boolean permitsMethod(Method method, Object receiver, Object[] args) {
+                return allow[0];
+            }
+        });
+        Method length = String.class.getMethod("length");
+        Method hashCode = Object.class.getMethod("hashCode");
+        assertTrue(pw.permitsMethod(length, "x", new Object[0]));
+        assertTrue(pw.permitsMethod(hashCode, "x", new Object[0]));
+        allow[0] = false;
+        assertTrue(pw.permitsMethod(length, "x", new Object[0]));
+        assertFalse(pw.permitsMethod(hashCode, "x", new Object[0]));
+    }
+
+    @Test public void mutableDelegate() throws Exception {
+        MutableWhitelist mw = new MutableWhitelist(Collections.singleton("method java.lang.String length"));
+        ProxyWhitelist pw = new ProxyWhitelist(new ProxyWhitelist(mw), new StaticWhitelist("new java.lang.Object"));
+        Method length = String.class.getMethod("length");
+        Method hashCode = Object.class.getMethod("hashCode");
+        assertTrue(pw.permitsMethod(length, "x", new Object[0]));
+        assertFalse(pw.permitsMethod(hashCode, "x", new Object[0]));
+        assertTrue(mw.add("method java.lang.Object hashCode"));
+        assertFalse(mw.add("method java.lang.Object hashCode"));
+        assertTrue(pw.permitsMethod(hashCode, "x", new Object[0]));
+        assertTrue(mw.remove("method java.lang.String length"));
+        assertFalse(pw.permitsMethod(length, "x", new Object[0]));
+        assertTrue(pw.permitsMethod(hashCode, "x", new Object[0]));
+        mw.add("staticField java.lang.Integer MAX_VALUE");
+        assertTrue(pw.permitsStaticFieldGet(Integer.class.getField("MAX_VALUE")));
+        mw.replaceAll(Collections.<String>emptySet());
+        assertFalse(pw.permitsMethod(hashCode, "x", new Object[0]));
+        assertFalse(pw.permitsStaticFieldGet(Integer.class.getField("MAX_VALUE")));
+        assertTrue(pw.permitsConstructor(Object.class.getConstructor(), new Object[0]));
+    }
+
 }
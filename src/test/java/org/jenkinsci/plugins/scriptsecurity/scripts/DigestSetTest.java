@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.scriptsecurity.scripts;
+
+import hudson.Util;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DigestSetTest {
+
+    @Test public void basics() throws Exception {
+        DigestSet s = new DigestSet();
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            String hash = sha1("script" + i);
+            assertTrue(s.add(hash));
+            expected.add(hash);
+        }
+        assertFalse(s.add(sha1("script0")));
+        assertEquals(1000, s.size());
+        assertEquals(expected, new HashSet<String>(s.toList()));
+        for (String hash : expected) {
+            assertTrue(hash, s.contains(hash));
+        }
+        assertFalse(s.contains(sha1("other")));
+        assertTrue(s.contains(sha1("script5").toUpperCase()));
+        assertFalse("not a SHA-1 digest", s.add("cafebabe"));
+        assertFalse(s.contains("cafebabe"));
+        assertTrue(s.remove(sha1("script5")));
+        assertFalse(s.remove(sha1("script5")));
+        assertFalse(s.contains(sha1("script5")));
+        assertTrue(s.contains(sha1("script6")));
+        assertEquals(999, s.size());
+        String zero = Util.toHexString(new byte[20]);
+        assertTrue(s.add(zero));
+        assertTrue(s.contains(zero));
+        assertTrue(s.toList().contains(zero));
+        s.clear();
+        assertEquals(0, s.size());
+        assertFalse(s.contains(sha1("script6")));
+    }
+
+    private static String sha1(String text) throws Exception {
+        return Util.toHexString(MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
@@ -35,10 +35,13 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeSet;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public final class EntryApprovalTest extends AbstractApprovalTest<EntryApprovalTest.Entry> {
 
@@ -48,11 +51,23 @@ public final class EntryApprovalTest extends AbstractApprovalTest<EntryApprovalT
 
     @Override
     Entry create() throws Exception {
+        return entry(newFile());
+    }
+
+    private File newFile() throws IOException {
         final File file = tmpFolderRule.newFile();
         final byte[] bytes = new byte[1024];
         random.nextBytes(bytes);
         FileUtils.writeByteArrayToFile(file, bytes);
-        return entry(file);
+        return file;
+    }
+
+    private List<ClasspathEntry> newEntries(int count) throws Exception {
+        List<ClasspathEntry> entries = new ArrayList<ClasspathEntry>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new ClasspathEntry(newFile().toURI().toURL().toExternalForm()));
+        }
+        return entries;
     }
 
     @Override
@@ -72,6 +87,50 @@ public final class EntryApprovalTest extends AbstractApprovalTest<EntryApprovalT
         assertTrue("Class directory shouldn't be accepted", ScriptApproval.get().getApprovedClasspathEntries().isEmpty());
     }
 
+    @Test public void usingClasspathHashesInOrder() throws Exception {
+        List<ClasspathEntry> entries = newEntries(6);
+        ScriptApproval.get().configuring(entries, ApprovalContext.create()); // approved, as there is no security
+        List<String> expected = new ArrayList<String>();
+        for (ClasspathEntry entry : entries) {
+            expected.add(ScriptApproval.hashClasspathEntry(entry.getURL()));
+        }
+        assertEquals(expected, ScriptApproval.get().usingClasspath(entries));
+        assertEquals(6, ScriptApproval.get().getApprovedClasspathEntries().size());
+    }
+
+    @Test public void usingClasspathRejectsFirstUnapproved() throws Exception {
+        configureSecurity();
+        List<ClasspathEntry> entries = newEntries(4);
+        ScriptApproval.get().configuring(entries, ApprovalContext.create());
+        assertEquals(4, ScriptApproval.get().getPendingClasspathEntries().size());
+        ScriptApproval.get().approveClasspathEntry(ScriptApproval.hashClasspathEntry(entries.get(0).getURL()));
+        ScriptApproval.get().approveClasspathEntry(ScriptApproval.hashClasspathEntry(entries.get(2).getURL()));
+        try {
+            ScriptApproval.get().usingClasspath(entries);
+            fail("entries 1 and 3 are unapproved");
+        } catch (UnapprovedClasspathException x) {
+            assertEquals(entries.get(1).getURL(), x.getURL());
+            assertEquals(ScriptApproval.hashClasspathEntry(entries.get(1).getURL()), x.getHash());
+        }
+    }
+
+    @Test public void classpathWithMissingEntry() throws Exception {
+        List<ClasspathEntry> entries = newEntries(4);
+        File missing = new File(tmpFolderRule.getRoot(), "missing.jar");
+        entries.add(2, new ClasspathEntry(missing.toURI().toURL().toExternalForm()));
+        ScriptApproval.get().configuring(entries, ApprovalContext.create()); // logs, but configures the others
+        assertEquals(4, ScriptApproval.get().getApprovedClasspathEntries().size());
+        assertTrue(ScriptApproval.get().getPendingClasspathEntries().isEmpty());
+        try {
+            ScriptApproval.get().usingClasspath(entries);
+            fail("cannot hash " + missing);
+        } catch (IOException x) {
+            // expected, once the earlier entries have been checked
+        }
+        entries.remove(2);
+        assertEquals(4, ScriptApproval.get().usingClasspath(entries).size());
+    }
+
     // http://stackoverflow.com/a/25393190/12916
     @WithoutJenkins
     @Test public void getPendingClasspathEntry() throws Exception {
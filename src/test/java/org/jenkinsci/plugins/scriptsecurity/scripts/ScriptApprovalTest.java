@@ -26,19 +26,31 @@ package org.jenkinsci.plugins.scriptsecurity.scripts;
 
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.html.HtmlTextArea;
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
 import org.hamcrest.Matchers;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.RejectedAccessException;
 import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyShellLanguage;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.recipes.LocalData;
 import org.xml.sax.SAXException;
 
+import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class ScriptApprovalTest extends AbstractApprovalTest<ScriptApprovalTest.Script> {
@@ -76,6 +88,171 @@ public class ScriptApprovalTest extends AbstractApprovalTest<ScriptApprovalTest.
         assertThat(dangerousTextArea.getTextContent(), Matchers.containsString(DANGEROUS_SIGNATURE));
     }
 
+    @Test public void deferredSave() throws Exception {
+        ScriptApproval sa = ScriptApproval.get();
+        File xml = new File(r.jenkins.getRootDir(), "scriptApproval.xml");
+        sa.approveSignature("method java.lang.Object toString");
+        sa.approveSignature("method java.lang.Object hashCode");
+        sa.flush();
+        String saved = FileUtils.readFileToString(xml);
+        assertThat(saved, Matchers.containsString("method java.lang.Object toString"));
+        assertThat(saved, Matchers.containsString("method java.lang.Object hashCode"));
+        long lastModified = xml.lastModified();
+        sa.flush(); // nothing more to write
+        assertEquals(lastModified, xml.lastModified());
+    }
+
+    @Test public void journal() throws Exception {
+        ScriptApproval sa = ScriptApproval.get();
+        File xml = new File(r.jenkins.getRootDir(), "scriptApproval.xml");
+        File journal = new File(r.jenkins.getRootDir(), "scriptApproval.journal");
+        sa.flush();
+        sa.approveSignature("method java.lang.Object toString");
+        Script s = script("println 'journaled'"); // approved immediately, as there is no security
+        assertTrue(journal.isFile());
+        ScriptApproval reloaded = new ScriptApproval();
+        assertArrayEquals(new String[] {"method java.lang.Object toString"}, reloaded.getApprovedSignatures());
+        assertTrue(reloaded.isScriptHashApproved(s.hash));
+        sa.flush();
+        assertFalse(journal.exists());
+        assertThat(FileUtils.readFileToString(xml), Matchers.containsString("method java.lang.Object toString"));
+        assertThat(FileUtils.readFileToString(xml), Matchers.containsString(s.hash));
+    }
+
+    @Test public void reload() throws Exception {
+        ScriptApproval sa = ScriptApproval.get();
+        sa.approveSignature("method java.lang.Object toString");
+        sa.aclApproveSignature("method java.lang.Object hashCode");
+        sa.accessRejected(new RejectedAccessException("method", "java.lang.Object wait"), ApprovalContext.create().withUser("alice"));
+        sa.save();
+        ScriptApproval reloaded = new ScriptApproval();
+        assertArrayEquals(sa.getApprovedSignatures(), reloaded.getApprovedSignatures());
+        assertArrayEquals(sa.getAclApprovedSignatures(), reloaded.getAclApprovedSignatures());
+        assertEquals(sa.getPendingSignatures(), reloaded.getPendingSignatures());
+        assertEquals("alice", reloaded.getPendingSignatures().iterator().next().getContext().getUser());
+    }
+
+    @Test public void approveSignatures() throws Exception {
+        ScriptApproval sa = ScriptApproval.get();
+        sa.accessRejected(new RejectedAccessException("method", "java.lang.Object toString"), ApprovalContext.create());
+        sa.accessRejected(new RejectedAccessException("method", "java.lang.Object hashCode"), ApprovalContext.create());
+        String[][] r = sa.approveSignatures("method java.lang.Object toString", "method java.lang.Object hashCode");
+        assertArrayEquals(new String[] {"method java.lang.Object hashCode", "method java.lang.Object toString"}, r[0]);
+        assertTrue(sa.getPendingSignatures().isEmpty());
+    }
+
+    @Test public void pendingSignatureLimit() throws Exception {
+        int max = ScriptApproval.MAX_PENDING_SIGNATURES;
+        ScriptApproval.MAX_PENDING_SIGNATURES = 2;
+        try {
+            ScriptApproval sa = ScriptApproval.get();
+            for (String method : new String[] {"toString", "hashCode", "hashCode", "getClass"}) {
+                sa.accessRejected(new RejectedAccessException("method", "java.lang.Object " + method), ApprovalContext.create());
+            }
+            assertEquals(2, sa.getPendingSignatures().size());
+        } finally {
+            ScriptApproval.MAX_PENDING_SIGNATURES = max;
+        }
+    }
+
+    @Test public void rejectionsDuringFold() throws Exception {
+        final ScriptApproval sa = ScriptApproval.get();
+        final int threads = 4, perThread = 250;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] rejecters = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread;
+            rejecters[t] = new Thread() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                        for (int i = base; i < base + perThread; i++) {
+                            sa.accessRejected(new RejectedAccessException("method", "java.lang.Object m" + i), ApprovalContext.create());
+                        }
+                    } catch (Throwable x) {
+                        x.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            rejecters[t].start();
+        }
+        start.countDown();
+        boolean running = true;
+        while (running) {
+            sa.getPendingSignatures(); // folds concurrently with the rejections
+            running = false;
+            for (Thread t : rejecters) {
+                running |= t.isAlive();
+            }
+        }
+        assertFalse(failed.get());
+        assertEquals(threads * perThread, sa.getPendingSignatures().size());
+    }
+
+    @Test public void pendingScriptsByHash() throws Exception {
+        configureSecurity();
+        ScriptApproval sa = ScriptApproval.get();
+        Script approved = script("println 'approve me'");
+        Script denied = script("println 'deny me'");
+        assertTrue(sa.isScriptPending(approved.hash));
+        assertTrue(sa.isScriptPending(denied.hash));
+        sa.approveScript(approved.hash);
+        assertFalse(sa.isScriptPending(approved.hash));
+        assertFalse(approved.findPending());
+        assertTrue(approved.findApproved());
+        sa.denyScript(denied.hash);
+        assertFalse(sa.isScriptPending(denied.hash));
+        assertFalse(denied.findPending());
+        assertFalse(denied.findApproved());
+        assertTrue(sa.getPendingScripts().isEmpty());
+        // Reconfiguring under the same key replaces the pending script in both views.
+        ApprovalContext context = ApprovalContext.create().withKey("some-job");
+        sa.configuring("println 'first'", GroovyLanguage.get(), context);
+        sa.configuring("println 'second'", GroovyLanguage.get(), context);
+        assertFalse(sa.isScriptPending(ScriptApproval.hash("println 'first'", GroovyLanguage.get().getName())));
+        String second = ScriptApproval.hash("println 'second'", GroovyLanguage.get().getName());
+        assertTrue(sa.isScriptPending(second));
+        assertEquals(1, sa.getPendingScripts().size());
+        sa.approveScripts(second);
+        assertFalse(sa.isScriptPending(second));
+        assertTrue(sa.getPendingScripts().isEmpty());
+    }
+
+    @Test public void hashMemoDistinguishesLanguages() throws Exception {
+        String script = "println 'same text'";
+        String groovy = GroovyLanguage.get().getName();
+        String shell = GroovyShellLanguage.get().getName();
+        String groovyHash = ScriptApproval.hash(new String(script), groovy);
+        String shellHash = ScriptApproval.hash(new String(script), shell);
+        assertNotEquals(groovyHash, shellHash);
+        for (int i = 0; i < 2; i++) { // alternate languages on the same instance, so each lookup may find the other in the memo
+            assertEquals(groovyHash, ScriptApproval.hash(script, groovy));
+            assertEquals(shellHash, ScriptApproval.hash(script, shell));
+        }
+        assertEquals(sha1(groovy + ":" + script), groovyHash);
+        assertEquals(sha1(shell + ":" + script), shellHash);
+    }
+
+    @Test public void classpathEntryRewrittenInPlace() throws Exception {
+        File jar = new File(r.jenkins.getRootDir(), "rewritten.jar");
+        FileUtils.writeStringToFile(jar, "first version", "UTF-8");
+        long lastModified = jar.lastModified();
+        String first = ScriptApproval.hashClasspathEntry(jar.toURI().toURL());
+        assertEquals(sha1("first version"), first);
+        assertEquals(first, ScriptApproval.hashClasspathEntry(jar.toURI().toURL()));
+        FileUtils.writeStringToFile(jar, "later version", "UTF-8"); // same size
+        assertTrue(jar.setLastModified(lastModified));
+        assertEquals(sha1("later version"), ScriptApproval.hashClasspathEntry(jar.toURI().toURL()));
+        FileUtils.writeStringToFile(jar, "final version", "UTF-8");
+        assertEquals(sha1("final version"), ScriptApproval.hashClasspathEntry(jar.toURI().toURL()));
+    }
+
+    private static String sha1(String text) throws Exception {
+        return Util.toHexString(MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8")));
+    }
+
     private Script script(String groovy) {
         return new Script(groovy);
     }